@@ -0,0 +1,19 @@
+package co.touchlab.thumbcache;
+
+import android.app.Application;
+
+import co.touchlab.thumbcache.util.ImageCache;
+
+/**
+ * Sets up what the image caches of every screen share, before any of them is created.
+ */
+public class ThumbcacheApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Flinging through the grid passes many thumbnails which are never looked at again, keep
+        // them from pushing the ones that are revisited out of memory
+        ImageCache.setMemoryCacheAdmissionEnabled(true);
+    }
+}
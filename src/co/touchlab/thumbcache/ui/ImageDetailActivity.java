@@ -19,6 +19,7 @@ package co.touchlab.thumbcache.ui;
 import android.annotation.SuppressLint;
 import android.app.ActionBar;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
@@ -69,7 +70,12 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
         // The ImageWorker takes care of loading images into our ImageView children asynchronously
         mImageWorker = new ImageFetcher(this, longest);
         mImageWorker.setAdapter(Images.imageWorkerUrlsAdapter);
-        mImageWorker.setImageCache(ImageCache.findOrCreateCache(this, IMAGE_CACHE_DIR));
+
+        // Full screen images are shown in full quality, thumbnails can make do with RGB_565
+        final ImageCache.ImageCacheParams cacheParams =
+                new ImageCache.ImageCacheParams(IMAGE_CACHE_DIR);
+        cacheParams.opaqueDecodeConfig = Bitmap.Config.ARGB_8888;
+        mImageWorker.setImageCache(ImageCache.findOrCreateCache(this, cacheParams));
         mImageWorker.setImageFadeIn(false);
 
         // Set up ViewPager and backing adapter
@@ -116,6 +122,12 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mImageWorker.unbindAll();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -100,6 +100,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         final GridView mGridView = (GridView) v.findViewById(R.id.gridView);
         mGridView.setAdapter(mAdapter);
         mGridView.setOnItemClickListener(this);
+        mGridView.setOnScrollListener(new PauseOnScrollListener(mImageWorker));
 
         // This listener is used to get the final width of the GridView and then calculate the
         // number of columns and the width of each column. The width of each column is variable
@@ -139,6 +140,13 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
     public void onPause() {
         super.onPause();
         mImageWorker.setExitTasksEarly(true);
+        mImageWorker.setPauseWork(false);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mImageWorker.unbindAll();
     }
 
     @Override
@@ -15,6 +15,7 @@ import co.touchlab.thumbcache.provider.Images;
 import co.touchlab.thumbcache.util.ImageCache;
 import co.touchlab.thumbcache.util.ImageFetcher;
 import co.touchlab.thumbcache.util.ImageWorker;
+import co.touchlab.thumbcache.util.PauseOnScrollListener;
 import co.touchlab.thumbcache.util.Utils;
 
 /**
@@ -50,9 +51,10 @@ public class TestListActivity extends Activity
         // ImageDetailActivity so a third lets us keep all our sample image thumbnails in memory
         // at once.
         cacheParams.memCacheSize = 1024 * 1024 * Utils.getMemoryClass(this) / 3;
-        imageWorker.setImageCache(new ImageCache(this, cacheParams));
+        imageWorker.setImageCache(ImageCache.findOrCreateCache(this, cacheParams));
 
         list.setAdapter(new TestAdapter(this, imageWorker));
+        list.setOnScrollListener(new PauseOnScrollListener(imageWorker));
     }
 
     @Override
@@ -60,6 +62,7 @@ public class TestListActivity extends Activity
     {
         super.onPause();
         imageWorker.setExitTasksEarly(true);
+        imageWorker.setPauseWork(false);
     }
 
     @Override
@@ -69,6 +72,13 @@ public class TestListActivity extends Activity
         imageWorker.setExitTasksEarly(false);
     }
 
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        imageWorker.unbindAll();
+    }
+
     static class TestAdapter extends BaseAdapter
     {
         private Context context;
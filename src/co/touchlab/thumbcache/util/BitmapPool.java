@@ -0,0 +1,335 @@
+package co.touchlab.thumbcache.util;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import co.touchlab.thumbcache.BuildConfig;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A byte-budgeted pool of mutable bitmaps, bucketed by size and config, which can be drawn into or
+ * decoded into again instead of allocating a new bitmap each time. This is fed by bitmaps evicted
+ * from the memory cache, and by the intermediate bitmaps thrown away while resizing.
+ * <p/>
+ * A bitmap which is still displayed must never be reused, so the pool also counts how many
+ * ImageViews each bitmap is displayed in. A bitmap evicted while it is displayed is only pooled once
+ * the last ImageView lets go of it. Only used on Honeycomb and up, where bitmaps can be reused.
+ * <p/>
+ * {@link #retain} and {@link #release} are called on the UI thread for every bitmap bound to an
+ * ImageView, so they do not take the lock of the pool. They only do in the rare case a bitmap was
+ * pooled or offered to the pool while it was being bound or unbound.
+ */
+public class BitmapPool
+{
+    private static final String TAG = "BitmapPool";
+
+    private final int maxByteSize;
+    private int byteSize = 0;
+
+    // Pooled bitmaps by bucket, least recently pooled bucket first, guarded by "this"
+    private final LinkedHashMap<String, LinkedList<Bitmap>> buckets =
+            new LinkedHashMap<String, LinkedList<Bitmap>>(16, 0.75f, true);
+
+    // Number of ImageViews each bitmap is displayed in, only bitmaps displayed at least once
+    private final ConcurrentHashMap<Bitmap, Integer> displayCounts =
+            new ConcurrentHashMap<Bitmap, Integer>();
+    // Bitmaps offered to the pool while they were still displayed, pooled by whichever of put and
+    // release takes them out of here
+    private final ConcurrentHashMap<Bitmap, Boolean> pendingBitmaps =
+            new ConcurrentHashMap<Bitmap, Boolean>();
+    // Bitmaps in the buckets, so retain can tell without the lock whether it has to take one out
+    private final ConcurrentHashMap<Bitmap, Boolean> pooledBitmaps =
+            new ConcurrentHashMap<Bitmap, Boolean>();
+
+    private int hitCount = 0;
+    private int missCount = 0;
+
+    /**
+     * @param maxByteSize The most bytes of bitmaps to hold on to.
+     */
+    public BitmapPool(int maxByteSize)
+    {
+        this.maxByteSize = maxByteSize;
+    }
+
+    /**
+     * Offer a bitmap that is no longer needed. It is pooled if it can be reused, once it is no
+     * longer displayed.
+     */
+    public synchronized void put(Bitmap bitmap)
+    {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled())
+        {
+            return;
+        }
+
+        final int size = Utils.getBitmapSize(bitmap);
+        if (size > maxByteSize)
+        {
+            return;
+        }
+
+        final String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> bucket = buckets.get(key);
+        if (bucket != null && bucket.contains(bitmap))
+        {
+            return;
+        }
+
+        while (true)
+        {
+            // Published before checking for a retain, which checks for it after counting itself
+            pooledBitmaps.put(bitmap, Boolean.TRUE);
+            if (!displayCounts.containsKey(bitmap))
+            {
+                break;
+            }
+
+            // Pooled by release once nothing displays it, unless the last release came first
+            pooledBitmaps.remove(bitmap);
+            pendingBitmaps.put(bitmap, Boolean.TRUE);
+            if (displayCounts.containsKey(bitmap) || pendingBitmaps.remove(bitmap) == null)
+            {
+                return;
+            }
+        }
+
+        if (bucket == null)
+        {
+            bucket = new LinkedList<Bitmap>();
+            buckets.put(key, bucket);
+        }
+        bucket.addLast(bitmap);
+        byteSize += size;
+        trimToSize();
+    }
+
+    /**
+     * Take a bitmap of exactly the given size and config out of the pool, for example to draw into.
+     * Its old contents are left as they were.
+     *
+     * @return A bitmap, or null if there is none of that size.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+    {
+        final LinkedList<Bitmap> bucket = buckets.get(getKey(width, height, config));
+        if (bucket == null || bucket.isEmpty())
+        {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        final Bitmap bitmap = bucket.removeLast();
+        pooledBitmaps.remove(bitmap);
+        byteSize -= Utils.getBitmapSize(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Set {@link BitmapFactory.Options#inBitmap} to a pooled bitmap the decode can reuse, if there
+     * is one. The options must have their out fields and inSampleSize set already. Before KitKat
+     * the decoded image has to match the pooled bitmap exactly and cannot be sampled down, from
+     * KitKat on any pooled bitmap with enough bytes in the same config will do.
+     *
+     * @return true if a bitmap to reuse was set.
+     */
+    @SuppressLint("NewApi")
+    public boolean addInBitmapOptions(BitmapFactory.Options options)
+    {
+        if (!Utils.hasHoneycomb())
+        {
+            return false;
+        }
+
+        options.inMutable = true;
+        final Bitmap.Config config =
+                options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+        Bitmap reusable = null;
+        if (Utils.hasKitKat())
+        {
+            reusable = getAtLeast(width * height * getBytesPerPixel(config), config);
+        }
+        else if (sampleSize == 1)
+        {
+            reusable = get(width, height, config);
+        }
+
+        if (reusable != null)
+        {
+            options.inBitmap = reusable;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized Bitmap getAtLeast(int byteCount, Bitmap.Config config)
+    {
+        for (LinkedList<Bitmap> bucket : buckets.values())
+        {
+            final Iterator<Bitmap> iterator = bucket.iterator();
+            while (iterator.hasNext())
+            {
+                final Bitmap bitmap = iterator.next();
+                final int size = Utils.getBitmapSize(bitmap);
+                if (bitmap.getConfig() == config && size >= byteCount)
+                {
+                    iterator.remove();
+                    pooledBitmaps.remove(bitmap);
+                    byteSize -= size;
+                    hitCount++;
+                    return bitmap;
+                }
+            }
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Note that a bitmap is now displayed in one more ImageView. If it had just been pooled, it is
+     * taken back out. Only blocks in that case.
+     */
+    public void retain(Bitmap bitmap)
+    {
+        while (true)
+        {
+            final Integer count = displayCounts.get(bitmap);
+            if (count == null ? displayCounts.putIfAbsent(bitmap, 1) == null
+                    : displayCounts.replace(bitmap, count, count + 1))
+            {
+                break;
+            }
+        }
+
+        // Counted before checking, so a put either sees the count or is seen here
+        if (pooledBitmaps.containsKey(bitmap))
+        {
+            unpool(bitmap);
+        }
+    }
+
+    private synchronized void unpool(Bitmap bitmap)
+    {
+        final LinkedList<Bitmap> bucket =
+                buckets.get(getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()));
+        if (bucket != null && bucket.remove(bitmap))
+        {
+            pooledBitmaps.remove(bitmap);
+            byteSize -= Utils.getBitmapSize(bitmap);
+        }
+    }
+
+    /**
+     * Note that a bitmap is displayed in one less ImageView. If it was offered to the pool while
+     * displayed, it is pooled now that nothing displays it. Only blocks in that case.
+     */
+    public void release(Bitmap bitmap)
+    {
+        while (true)
+        {
+            final Integer count = displayCounts.get(bitmap);
+            if (count == null)
+            {
+                return;
+            }
+            if (count > 1 ? displayCounts.replace(bitmap, count, count - 1)
+                    : displayCounts.remove(bitmap, count))
+            {
+                if (count > 1)
+                {
+                    return;
+                }
+                break;
+            }
+        }
+
+        if (pendingBitmaps.remove(bitmap) != null)
+        {
+            put(bitmap);
+        }
+    }
+
+    /**
+     * @return true if the bitmap is displayed in at least one ImageView.
+     */
+    public boolean isDisplayed(Bitmap bitmap)
+    {
+        return displayCounts.containsKey(bitmap);
+    }
+
+    public synchronized void clear()
+    {
+        buckets.clear();
+        pooledBitmaps.clear();
+        pendingBitmaps.clear();
+        byteSize = 0;
+    }
+
+    /**
+     * @return The number of requests for a bitmap which were served from the pool.
+     */
+    public synchronized int getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * @return The number of requests for a bitmap which had to allocate a new one.
+     */
+    public synchronized int getMissCount()
+    {
+        return missCount;
+    }
+
+    private void trimToSize()
+    {
+        final Iterator<Map.Entry<String, LinkedList<Bitmap>>> iterator = buckets.entrySet().iterator();
+        while (byteSize > maxByteSize && iterator.hasNext())
+        {
+            final LinkedList<Bitmap> bucket = iterator.next().getValue();
+            while (byteSize > maxByteSize && !bucket.isEmpty())
+            {
+                final Bitmap bitmap = bucket.removeFirst();
+                pooledBitmaps.remove(bitmap);
+                byteSize -= Utils.getBitmapSize(bitmap);
+            }
+            if (bucket.isEmpty())
+            {
+                iterator.remove();
+            }
+        }
+        if (BuildConfig.DEBUG)
+        {
+            Log.d(TAG, "trimToSize - pool holds " + byteSize + " bytes");
+        }
+    }
+
+    private static String getKey(int width, int height, Bitmap.Config config)
+    {
+        return width + "x" + height + ":" + config;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config)
+    {
+        if (config == Bitmap.Config.ARGB_8888)
+        {
+            return 4;
+        }
+        else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+        {
+            return 2;
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,777 @@
+package co.touchlab.thumbcache.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache with the same contract as {@link android.support.v4.util.LruCache}, built
+ * for a reader on the UI thread racing writers on worker threads. That class takes one monitor for
+ * every get and put, so a lookup from getView can stall behind a worker inserting a bitmap and
+ * evicting others to make room for it.
+ * <p/>
+ * Here entries live in a {@link ConcurrentHashMap}, so {@link #get(Object)} never takes a lock.
+ * A read only stamps the entry with the value of a global clock, recording how recently it was
+ * used. Writers keep the entries in queues, in the order they last saw them used, under a lock only
+ * writers take. Reads do not touch the queues, so the order is brought up to date lazily: an entry
+ * found at the head of a queue with a newer stamp than it was queued with is moved to the back
+ * rather than evicted. Every write and eviction is then a constant amount of work, and the order is
+ * close to LRU. Like {@link android.support.v4.util.LruCache}, {@link #entryRemoved} is called
+ * outside of that lock.
+ * <p/>
+ * Plain LRU lets a single pass over many images, such as a fling through a long grid, push out the
+ * images which are revisited all the time. With frequency admission, eviction follows W-TinyLFU
+ * instead: new entries go into a small LRU window, and leave it for a main region split into a
+ * probation and a protected segment. An entry leaving the window only displaces the least recently
+ * used entry on probation if a {@link FrequencySketch} of recent lookups says it is asked for more
+ * often. Entries looked up again while on probation are protected.
+ * <p/>
+ * Entries can be pinned, for example while they are on screen. A pinned entry is never evicted and
+ * does not count towards the maximum size, so pinning never pushes other entries out. Like reads,
+ * pinning and unpinning never take the lock, as they happen on the UI thread for every bound view.
+ * A pinned entry is only taken out of its queue once an eviction comes across it, and an unpinned
+ * one is queued again, and the cache trimmed, by the next writer.
+ */
+public class ConcurrentLruCache<K, V>
+{
+    // Expected number of threads writing at once, the UI thread plus the disk and decode pools
+    private static final int CONCURRENCY_LEVEL = 4;
+
+    // Share of the maximum size kept for the admission window, in percent
+    private static final int WINDOW_PERCENT = 1;
+    // Share of the main region kept for protected entries, in percent
+    private static final int PROTECTED_PERCENT = 80;
+
+    private static final int REGION_WINDOW = 0;
+    private static final int REGION_PROBATION = 1;
+    private static final int REGION_PROTECTED = 2;
+
+    // Pin count of an entry which has left the map, it can no longer be pinned
+    private static final int PIN_COUNT_REMOVED = -1;
+
+    private final ConcurrentHashMap<K, Entry<K, V>> map;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong clock = new AtomicLong();
+    private final Object evictionLock = new Object();
+    private volatile int maxSize;
+    private volatile FrequencySketch sketch;
+    // Sum of the sizes of the pinned entries
+    private final AtomicInteger pinnedSize = new AtomicInteger();
+    // Entries unpinned since the last write, to be queued again by it
+    private final ConcurrentLinkedQueue<Entry<K, V>> unpinned = new ConcurrentLinkedQueue<Entry<K, V>>();
+
+    // The entries which are not pinned, by region, guarded by the eviction lock. With plain LRU
+    // every entry is in the window.
+    private final AccessQueue<K, V> window = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> probation = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> protectedQueue = new AccessQueue<K, V>();
+    // How many more entries the current eviction may move to the back of a queue, so readers
+    // stamping entries cannot keep it going. Guarded by the eviction lock.
+    private int requeueBudget;
+
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    /**
+     * @param maxSize The maximum sum of the sizes of the entries in this cache, as measured by
+     *                {@link #sizeOf(Object, Object)}.
+     */
+    public ConcurrentLruCache(int maxSize)
+    {
+        this(maxSize, false);
+    }
+
+    /**
+     * @param maxSize             The maximum sum of the sizes of the entries in this cache, as
+     *                            measured by {@link #sizeOf(Object, Object)}.
+     * @param frequencyAdmission true to only admit entries which are asked for more often than the
+     *                            ones they would displace, false for plain LRU.
+     */
+    public ConcurrentLruCache(int maxSize, boolean frequencyAdmission)
+    {
+        if (maxSize <= 0)
+        {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap<K, Entry<K, V>>(16, 0.75f, CONCURRENCY_LEVEL);
+        this.sketch = frequencyAdmission ? new FrequencySketch(16) : null;
+    }
+
+    /**
+     * Returns the value for key if it exists in the cache, marking it as the most recently used.
+     * This never blocks.
+     */
+    public final V get(K key)
+    {
+        if (key == null)
+        {
+            throw new NullPointerException("key == null");
+        }
+
+        final FrequencySketch sketch = this.sketch;
+        if (sketch != null)
+        {
+            sketch.increment(key);
+        }
+
+        final Entry<K, V> entry = map.get(key);
+        if (entry == null)
+        {
+            missCount.incrementAndGet();
+            return null;
+        }
+        entry.accessOrder = clock.incrementAndGet();
+        hitCount.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Returns the value for key if it exists in the cache, without counting as a use of it. The
+     * entry is not made more recently used, and neither the hit and miss counts nor the frequency
+     * of key change. For checks made while handling a request already seen by {@link #get}.
+     */
+    public final V peek(K key)
+    {
+        if (key == null)
+        {
+            throw new NullPointerException("key == null");
+        }
+
+        final Entry<K, V> entry = map.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * Caches value for key, as the most recently used entry, evicting the least recently used
+     * entries if the cache is now over its maximum size.
+     *
+     * @return the previous value mapped by key.
+     */
+    public final V put(K key, V value)
+    {
+        if (key == null || value == null)
+        {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final Entry<K, V> entry =
+                new Entry<K, V>(key, value, safeSizeOf(key, value), clock.incrementAndGet());
+        final Entry<K, V> previous;
+        synchronized (evictionLock)
+        {
+            requeueUnpinned();
+            previous = map.put(key, entry);
+            size.addAndGet(entry.size);
+            window.addLast(entry);
+            if (previous != null)
+            {
+                size.addAndGet(-previous.size);
+                unlink(previous);
+            }
+        }
+        if (previous != null)
+        {
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(maxSize);
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * Removes the entry for key if it exists.
+     *
+     * @return the previous value mapped by key.
+     */
+    public final V remove(K key)
+    {
+        if (key == null)
+        {
+            throw new NullPointerException("key == null");
+        }
+
+        final Entry<K, V> previous;
+        synchronized (evictionLock)
+        {
+            requeueUnpinned();
+            previous = map.remove(key);
+            if (previous == null)
+            {
+                return null;
+            }
+            size.addAndGet(-previous.size);
+            unlink(previous);
+        }
+        entryRemoved(false, key, previous.value, null);
+        return previous.value;
+    }
+
+    /**
+     * Pin the entry for key, as long as it still holds value. A pinned entry is never evicted and
+     * does not count towards the maximum size, until every pin is undone by {@link #unpin}. Pins
+     * are dropped when the entry is removed or replaced. This never blocks.
+     *
+     * @return true if the entry was pinned, false if the key no longer maps to value.
+     */
+    public final boolean pin(K key, V value)
+    {
+        if (key == null || value == null)
+        {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final Entry<K, V> entry = map.get(key);
+        if (entry == null || entry.value != value)
+        {
+            return false;
+        }
+        while (true)
+        {
+            final int pinCount = entry.pinCount.get();
+            if (pinCount == PIN_COUNT_REMOVED)
+            {
+                return false;
+            }
+            if (entry.pinCount.compareAndSet(pinCount, pinCount + 1))
+            {
+                if (pinCount == 0)
+                {
+                    pinnedSize.addAndGet(entry.size);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Undo one call to {@link #pin} for the entry for key, if it still holds value. Once the last
+     * pin is undone the entry counts towards the maximum size again, and may be evicted by the next
+     * write. This never blocks, and never evicts.
+     */
+    public final void unpin(K key, V value)
+    {
+        if (key == null || value == null)
+        {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final Entry<K, V> entry = map.get(key);
+        if (entry == null || entry.value != value)
+        {
+            return;
+        }
+        while (true)
+        {
+            final int pinCount = entry.pinCount.get();
+            if (pinCount <= 0)
+            {
+                return;
+            }
+            if (entry.pinCount.compareAndSet(pinCount, pinCount - 1))
+            {
+                if (pinCount == 1)
+                {
+                    pinnedSize.addAndGet(-entry.size);
+                    unpinned.offer(entry);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queue the entries unpinned since the last write again, as the most recently used, if an
+     * eviction took them out of their queue while they were pinned. Must hold the eviction lock.
+     */
+    private void requeueUnpinned()
+    {
+        Entry<K, V> entry;
+        while ((entry = unpinned.poll()) != null)
+        {
+            if (!entry.queued && entry.pinCount.get() == 0)
+            {
+                queueOf(entry).addLast(entry);
+            }
+        }
+    }
+
+    /**
+     * Take an entry that has left the map out of its queue, and forget its pins. Must hold the
+     * eviction lock.
+     */
+    private void unlink(Entry<K, V> entry)
+    {
+        if (entry.queued)
+        {
+            queueOf(entry).remove(entry);
+        }
+        if (entry.pinCount.getAndSet(PIN_COUNT_REMOVED) > 0)
+        {
+            pinnedSize.addAndGet(-entry.size);
+        }
+    }
+
+    private AccessQueue<K, V> queueOf(Entry<K, V> entry)
+    {
+        switch (entry.region)
+        {
+            case REGION_WINDOW:
+                return window;
+            case REGION_PROBATION:
+                return probation;
+            default:
+                return protectedQueue;
+        }
+    }
+
+    /**
+     * Remove the least recently used entries which are not pinned until the total of the remaining
+     * entries which are not pinned is at or below the requested size.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1 to evict even
+     *                0-sized elements.
+     */
+    public void trimToSize(int maxSize)
+    {
+        if (unpinnedSize() <= maxSize)
+        {
+            return;
+        }
+
+        final List<Entry<K, V>> evicted = new ArrayList<Entry<K, V>>();
+        synchronized (evictionLock)
+        {
+            requeueUnpinned();
+            if (unpinnedSize() <= maxSize)
+            {
+                return;
+            }
+
+            requeueBudget = map.size();
+            if (sketch != null)
+            {
+                evictWithAdmission(maxSize, evicted);
+            }
+            else
+            {
+                while (unpinnedSize() > maxSize)
+                {
+                    final Entry<K, V> entry = leastRecentlyUsed(window);
+                    if (entry == null)
+                    {
+                        break;
+                    }
+                    evict(entry, evicted);
+                }
+            }
+        }
+
+        for (Entry<K, V> entry : evicted)
+        {
+            entryRemoved(true, entry.key, entry.value, null);
+        }
+    }
+
+    /**
+     * Change the maximum size of the cache, evicting entries if it shrinks below the current size.
+     *
+     * @param maxSize The new maximum sum of the sizes of the entries in this cache
+     */
+    public void resize(int maxSize)
+    {
+        if (maxSize <= 0)
+        {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * W-TinyLFU eviction, must hold the eviction lock.
+     */
+    private void evictWithAdmission(int maxSize, List<Entry<K, V>> evicted)
+    {
+        sketch.ensureCapacity(map.size());
+
+        final int windowMax = (int)((long)this.maxSize * WINDOW_PERCENT / 100);
+        final int protectedMax = (int)((long)(this.maxSize - windowMax) * PROTECTED_PERCENT / 100);
+        demoteProtected(protectedMax);
+
+        // Least recently used window entries past its share have to earn a place in the main
+        // region. They are out of every queue until they do.
+        final List<Entry<K, V>> admissions = new ArrayList<Entry<K, V>>();
+        while (window.weight > windowMax)
+        {
+            final Entry<K, V> entry = leastRecentlyUsed(window);
+            if (entry == null)
+            {
+                break;
+            }
+            window.remove(entry);
+            entry.region = REGION_PROBATION;
+            admissions.add(entry);
+        }
+
+        int admissionIndex = 0;
+        while (unpinnedSize() > maxSize)
+        {
+            final Entry<K, V> admission =
+                    admissionIndex < admissions.size() ? admissions.get(admissionIndex) : null;
+            final Entry<K, V> victim = probationVictim(protectedMax);
+
+            if (admission != null && (victim == null
+                    || sketch.frequency(admission.key) <= sketch.frequency(victim.key)))
+            {
+                admissionIndex++;
+                evictUnqueued(admission, evicted);
+            }
+            else if (victim != null)
+            {
+                evict(victim, evicted);
+            }
+            else if (protectedQueue.head != null)
+            {
+                evict(protectedQueue.head, evicted);
+            }
+            else if (window.head != null)
+            {
+                evict(window.head, evicted);
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        // The admissions left over join the main region on probation
+        for (int i = admissionIndex; i < admissions.size(); i++)
+        {
+            probation.addLast(admissions.get(i));
+        }
+    }
+
+    /**
+     * @return The least recently used entry on probation, after protecting the ones found to have
+     *         been looked up again while on probation and dropping pinned ones from the queue. Null
+     *         if there is none.
+     */
+    private Entry<K, V> probationVictim(int protectedMax)
+    {
+        while (true)
+        {
+            final Entry<K, V> entry = probation.head;
+            if (entry != null && entry.isPinned())
+            {
+                probation.remove(entry);
+                continue;
+            }
+            if (entry == null || requeueBudget <= 0 || !entry.usedSinceQueued())
+            {
+                return entry;
+            }
+            requeueBudget--;
+            probation.remove(entry);
+            entry.region = REGION_PROTECTED;
+            protectedQueue.addLast(entry);
+            demoteProtected(protectedMax);
+        }
+    }
+
+    /**
+     * Put the least recently used protected entries past their share back on probation.
+     */
+    private void demoteProtected(int protectedMax)
+    {
+        while (protectedQueue.weight > protectedMax)
+        {
+            final Entry<K, V> entry = leastRecentlyUsed(protectedQueue);
+            if (entry == null)
+            {
+                return;
+            }
+            protectedQueue.remove(entry);
+            entry.region = REGION_PROBATION;
+            probation.addLast(entry);
+        }
+    }
+
+    /**
+     * @return The head of the queue, after moving the entries found to have been used since they
+     *         were queued to the back and dropping pinned ones. Null if the queue is empty.
+     */
+    private Entry<K, V> leastRecentlyUsed(AccessQueue<K, V> queue)
+    {
+        while (true)
+        {
+            final Entry<K, V> entry = queue.head;
+            if (entry != null && entry.isPinned())
+            {
+                // Out of the queue until unpinned, so eviction does not keep coming across it
+                queue.remove(entry);
+                continue;
+            }
+            if (entry == null || requeueBudget <= 0 || !entry.usedSinceQueued())
+            {
+                return entry;
+            }
+            requeueBudget--;
+            queue.remove(entry);
+            queue.addLast(entry);
+        }
+    }
+
+    private void evict(Entry<K, V> entry, List<Entry<K, V>> evicted)
+    {
+        queueOf(entry).remove(entry);
+        evictUnqueued(entry, evicted);
+    }
+
+    private void evictUnqueued(Entry<K, V> entry, List<Entry<K, V>> evicted)
+    {
+        // Left out of the queue if it was pinned in the meantime, until it is unpinned
+        if (!entry.pinCount.compareAndSet(0, PIN_COUNT_REMOVED))
+        {
+            return;
+        }
+        if (map.remove(entry.key, entry))
+        {
+            size.addAndGet(-entry.size);
+            evicted.add(entry);
+        }
+    }
+
+    /**
+     * Clear the cache of every entry which is not pinned, calling {@link #entryRemoved} on each
+     * removed entry.
+     */
+    public final void evictAll()
+    {
+        trimToSize(-1);
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is invoked when a value is
+     * evicted to make space, removed by a call to {@link #remove}, or replaced by a call to
+     * {@link #put}. The default implementation does nothing.
+     * <p/>
+     * The method is called without synchronization: other threads may access the cache while this
+     * method is executing.
+     *
+     * @param evicted  true if the entry is being removed to make space, false if the removal was
+     *                 caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for key, if it exists. If non-null, this removal was caused by a
+     *                 {@link #put}. Otherwise it was caused by an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue)
+    {
+    }
+
+    /**
+     * Returns the size of the entry for key and value in user-defined units. The default
+     * implementation returns 1 so that size is the number of entries and max size is the maximum
+     * number of entries.
+     * <p/>
+     * An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value)
+    {
+        return 1;
+    }
+
+    private int safeSizeOf(K key, V value)
+    {
+        final int result = sizeOf(key, value);
+        if (result < 0)
+        {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of the current contents of the cache, least recently used first.
+     */
+    public final Map<K, V> snapshot()
+    {
+        final List<Candidate<K, V>> candidates = new ArrayList<Candidate<K, V>>(map.size());
+        for (Entry<K, V> entry : map.values())
+        {
+            candidates.add(new Candidate<K, V>(entry));
+        }
+        Collections.sort(candidates);
+
+        final Map<K, V> snapshot = new LinkedHashMap<K, V>(candidates.size());
+        for (Candidate<K, V> candidate : candidates)
+        {
+            snapshot.put(candidate.entry.key, candidate.entry.value);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the sum of the sizes of the entries in this cache.
+     */
+    public final int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return the sum of the sizes of the pinned entries in this cache, which do not count towards
+     *         the maximum size.
+     */
+    public final int pinnedSize()
+    {
+        return pinnedSize.get();
+    }
+
+    private int unpinnedSize()
+    {
+        return size.get() - pinnedSize.get();
+    }
+
+    /**
+     * @return the maximum sum of the sizes of the unpinned entries in this cache.
+     */
+    public final int maxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of times {@link #get} returned a value.
+     */
+    public final int hitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of times {@link #get} returned null.
+     */
+    public final int missCount()
+    {
+        return missCount.get();
+    }
+
+    private static class Entry<K, V>
+    {
+        final K key;
+        final V value;
+        final int size;
+        volatile long accessOrder;
+        // Number of pins, or PIN_COUNT_REMOVED once the entry has left the map
+        final AtomicInteger pinCount = new AtomicInteger();
+
+        // Where the entry is, whether it is in the queue of that region, its neighbours there and
+        // the access stamp it had when it was queued. Guarded by the eviction lock.
+        int region = REGION_WINDOW;
+        boolean queued;
+        Entry<K, V> previous;
+        Entry<K, V> next;
+        long queuedOrder;
+
+        Entry(K key, V value, int size, long accessOrder)
+        {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+            this.accessOrder = accessOrder;
+        }
+
+        boolean isPinned()
+        {
+            return pinCount.get() > 0;
+        }
+
+        /**
+         * @return true if the entry was looked up since it was queued.
+         */
+        boolean usedSinceQueued()
+        {
+            return accessOrder != queuedOrder;
+        }
+    }
+
+    /**
+     * The entries of a region, least recently used first as far as writers know, and the sum of
+     * their sizes. Guarded by the eviction lock.
+     */
+    private static class AccessQueue<K, V>
+    {
+        Entry<K, V> head;
+        Entry<K, V> tail;
+        int weight;
+
+        void addLast(Entry<K, V> entry)
+        {
+            entry.queuedOrder = entry.accessOrder;
+            entry.queued = true;
+            entry.previous = tail;
+            entry.next = null;
+            if (tail == null)
+            {
+                head = entry;
+            }
+            else
+            {
+                tail.next = entry;
+            }
+            tail = entry;
+            weight += entry.size;
+        }
+
+        void remove(Entry<K, V> entry)
+        {
+            if (entry.previous == null)
+            {
+                head = entry.next;
+            }
+            else
+            {
+                entry.previous.next = entry.next;
+            }
+            if (entry.next == null)
+            {
+                tail = entry.previous;
+            }
+            else
+            {
+                entry.next.previous = entry.previous;
+            }
+            entry.queued = false;
+            entry.previous = null;
+            entry.next = null;
+            weight -= entry.size;
+        }
+    }
+
+    /**
+     * An entry in a snapshot, with its stamp as it was when the snapshot was taken.
+     */
+    private static class Candidate<K, V> implements Comparable<Candidate<K, V>>
+    {
+        final Entry<K, V> entry;
+        final long accessOrder;
+
+        Candidate(Entry<K, V> entry)
+        {
+            this.entry = entry;
+            this.accessOrder = entry.accessOrder;
+        }
+
+        @Override
+        public int compareTo(Candidate<K, V> another)
+        {
+            return accessOrder < another.accessOrder ? -1 : (accessOrder == another.accessOrder ? 0 : 1);
+        }
+    }
+}
@@ -25,50 +25,127 @@ import android.util.Log;
 
 import co.touchlab.thumbcache.BuildConfig;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 /**
  * A simple disk LRU bitmap cache to illustrate how a disk cache would be used for bitmap caching. A
  * much more robust and efficient disk LRU cache solution can be found in the ICS source code
  * (libcore/luni/src/main/java/libcore/io/DiskLruCache.java) and is preferable to this simple
  * implementation.
+ * <p/>
+ * The index of the cache is kept in a journal file in the cache directory, so opening the cache
+ * reads one file rather than listing the directory and checking the length of every file in it.
+ * Each line of the journal is an operation on an entry:
+ * <ul>
+ *     <li>DIRTY key: the entry is being written to a temp file. If no CLEAN or REMOVE line follows,
+ *     the write never finished and the temp file is deleted.</li>
+ *     <li>CLEAN key length: the file of the entry was written, with that many bytes.</li>
+ *     <li>READ key: the entry was read, which moves it to the end of the LRU order.</li>
+ *     <li>REMOVE key: the entry was evicted or dropped.</li>
+ * </ul>
+ * Keys are URL encoded so they never contain spaces or line breaks. Once most lines of the journal
+ * are redundant it is rewritten with one CLEAN line per entry, least recently used first. A
+ * directory without a journal, written by an older version, is scanned once to create it.
+ * <p/>
+ * The file of an entry is named after the SHA-1 hash of its key in hex, in a subdirectory named
+ * after the first two digits of the hash. Names are short and of fixed length however long the URL
+ * is, and the files are spread over 256 small directories rather than one large one. Older
+ * versions kept every file in the cache directory itself, named after the URL encoded key with a
+ * cache_ prefix. Those files are moved into the subdirectories the first time the cache is opened.
+ * <p/>
+ * Entries are written with an {@link Editor} to a temp file, which is renamed to the file of the
+ * entry once it is complete. The file of an entry is never written in place, so a reader sees the
+ * whole image or nothing, and a failed write leaves nothing behind. Entries are read through a
+ * {@link Snapshot}, which keeps reading the file it opened even if the entry is evicted meanwhile.
+ * <p/>
+ * The index and the journal are guarded by one lock, held only to look up or update them. Files are
+ * opened, renamed and deleted under a lock for their key instead, picked from a fixed set of
+ * stripes, so threads working on different keys do their I/O at the same time. A thread never holds
+ * two key locks, and takes the index lock inside a key lock, never the other way around.
  */
 public class DiskLruCache {
     private static final String TAG = "DiskLruCache";
     private static final String CACHE_FILENAME_PREFIX = "cache_";
+    private static final String TEMP_FILENAME_SUFFIX = ".tmp";
     private static final int MAX_REMOVALS = 4;
     private static final int INITIAL_CAPACITY = 32;
     private static final float LOAD_FACTOR = 0.75f;
     private static final String DEFAULT_URL_ENCODING = "UTF-8";
 
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String JOURNAL_MAGIC = "co.touchlab.thumbcache.DiskLruCache";
+    static final String JOURNAL_VERSION = "2";
+    // Journals whose entries are flat cache_ files, which are moved into subdirectories on open
+    private static final String JOURNAL_VERSION_FLAT = "1";
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    // Rewrite the journal once it holds this many lines which are not needed to rebuild the index,
+    // and more of them than there are entries
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    // Number of locks the keys are spread over for file I/O, a power of two
+    private static final int KEY_LOCK_STRIPES = 16;
+    private static final String HASH_ALGORITHM = "SHA-1";
+    // Number of leading hex digits of the hash which name the subdirectory of a file
+    private static final int SHARD_DIGITS = 2;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private final File mCacheDir;
     private int cacheSize = 0;
-    private int cacheByteSize = 0;
+    private long cacheByteSize = 0;
     private final int maxCacheItemSize = 64; // 64 item default
     private long maxCacheByteSize = 1024 * 1024 * 5; // 5MB default
     private CompressFormat mCompressFormat = CompressFormat.JPEG;
     private int mCompressQuality = 70;
 
-    private final Map<String, String> mLinkedHashMap =
-            Collections.synchronizedMap(new LinkedHashMap<String, String>(
+    private final Map<String, CacheEntry> mLinkedHashMap =
+            Collections.synchronizedMap(new LinkedHashMap<String, CacheEntry>(
                     INITIAL_CAPACITY, LOAD_FACTOR, true));
 
+    // Appends to the journal, and the number of lines in it not needed to rebuild the index.
+    // Guarded by mLinkedHashMap.
+    private Writer mJournalWriter;
+    private int mRedundantOpCount = 0;
+    // Keys with an open Editor, guarded by mLinkedHashMap
+    private final Set<String> mDirtyKeys = new HashSet<String>();
+
+    // Guard the files of the keys that hash to them
+    private final Object[] mKeyLocks = new Object[KEY_LOCK_STRIPES];
+
     /**
-     * A filename filter to use to identify the cache filenames which have CACHE_FILENAME_PREFIX
-     * prepended.
+     * A filename filter to use to identify the flat cache files of older versions, which have
+     * CACHE_FILENAME_PREFIX prepended.
      */
     private static final FilenameFilter cacheFileFilter = new FilenameFilter() {
         @Override
@@ -77,6 +154,25 @@ public class DiskLruCache {
         }
     };
 
+    /**
+     * A filename filter to identify the subdirectories files are spread over, named after hex
+     * digits.
+     */
+    private static final FilenameFilter shardFilter = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String filename) {
+            if (filename.length() != SHARD_DIGITS) {
+                return false;
+            }
+            for (int i = 0; i < SHARD_DIGITS; i++) {
+                if (Character.digit(filename.charAt(i), 16) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
     /**
      * Used to fetch an instance of DiskLruCache.
      *
@@ -109,13 +205,31 @@ public class DiskLruCache {
     private DiskLruCache(File cacheDir, long maxByteSize) {
         mCacheDir = cacheDir;
         maxCacheByteSize = maxByteSize;
+        for (int i = 0; i < mKeyLocks.length; i++) {
+            mKeyLocks[i] = new Object();
+        }
 
-        //When the constructor is called, we want to repopulate the map from the filesystem.
-        repopulateFromDisk();
+        //When the constructor is called, we want to repopulate the map from the journal, or from
+        //the filesystem if there is none yet.
+        synchronized (mLinkedHashMap) {
+            if (!readJournal()) {
+                repopulateFromDisk();
+            }
+            //We also want to make sure the directory is not over the given file size.
+            for (CacheEntry evicted : flushCache()) {
+                new File(evicted.file).delete();
+            }
+            rebuildJournalIfNeeded();
+            if (mJournalWriter == null) {
+                rebuildJournal();
+            }
+        }
     }
 
     /**
-     * Puts entries in the map of URL -> file path based off of what is on disk.
+     * Puts entries in the map of URL -> file path based off of what is on disk, moving flat files
+     * into their subdirectories. Only used when there is no journal, after that the journal is kept
+     * up to date.
      */
     private void repopulateFromDisk()
     {
@@ -123,22 +237,32 @@ public class DiskLruCache {
         {
             synchronized (mLinkedHashMap)
             {
+                // Without a journal the hashed names cannot be mapped back to their keys
+                deleteShards(mCacheDir);
+
                 for (File file : mCacheDir.listFiles(cacheFileFilter))
                 {
-                    final String path = mCacheDir.getPath() + File.separator + file.getName();
+                    if (file.getName().endsWith(TEMP_FILENAME_SUFFIX))
+                    {
+                        file.delete();
+                        continue;
+                    }
                     final String encoded = file.getName().substring(CACHE_FILENAME_PREFIX.length());
                     try
                     {
                         final String key = URLDecoder.decode(encoded, DEFAULT_URL_ENCODING);
-                        put(key, path);
+                        final long length = file.length();
+                        final String path = createFilePath(mCacheDir, key);
+                        if (moveFile(file, path))
+                        {
+                            put(key, path, length);
+                        }
                     }
                     catch (UnsupportedEncodingException e)
                     {
                         Log.e(TAG, "repopulateFromDisk", e);
                     }
                 }
-                //We also want to make sure the directory is not over the given file size.
-                flushCache();
             }
         }
         catch (Exception e)
@@ -147,6 +271,283 @@ public class DiskLruCache {
         }
     }
 
+    /**
+     * Rebuild the index from the journal, in one sequential read, and open it for appending. A
+     * journal whose last line was cut short by a crash, or with lines that cannot be parsed, is
+     * read up to the damage and then rewritten, so new lines are never appended to a partial one.
+     *
+     * @return false if there is no usable journal.
+     */
+    private boolean readJournal() {
+        final File journalFile = new File(mCacheDir, JOURNAL_FILE);
+        if (!journalFile.exists()) {
+            return false;
+        }
+
+        BufferedReader reader = null;
+        boolean flat = false;
+        boolean damaged = false;
+        try {
+            // The last line is only complete if it was terminated
+            final boolean terminated = endsWithNewline(journalFile);
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(journalFile), DEFAULT_URL_ENCODING), Utils.IO_BUFFER_SIZE);
+            if (!JOURNAL_MAGIC.equals(reader.readLine())) {
+                Log.w(TAG, "readJournal - unexpected journal header, rebuilding");
+                return false;
+            }
+            final String version = reader.readLine();
+            flat = JOURNAL_VERSION_FLAT.equals(version);
+            if ((!flat && !JOURNAL_VERSION.equals(version)) || !"".equals(reader.readLine())) {
+                Log.w(TAG, "readJournal - unexpected journal header, rebuilding");
+                return false;
+            }
+
+            final Set<String> dirtyKeys = new HashSet<String>();
+            int lineCount = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                final String next = reader.readLine();
+                if (next == null && !terminated) {
+                    damaged = true;
+                    break;
+                }
+                lineCount++;
+                if (!readJournalLine(line, dirtyKeys, flat)) {
+                    damaged = true;
+                }
+                line = next;
+            }
+
+            // Writes that never finished. Journals from before writes went to a temp file may
+            // also have left a partial file of the entry itself.
+            for (String key : dirtyKeys) {
+                final String path =
+                        flat ? createFlatFilePath(mCacheDir, key) : createFilePath(mCacheDir, key);
+                new File(path + TEMP_FILENAME_SUFFIX).delete();
+                if (!mLinkedHashMap.containsKey(key)) {
+                    new File(path).delete();
+                }
+            }
+            mRedundantOpCount = lineCount - mLinkedHashMap.size();
+        } catch (IOException e) {
+            Log.e(TAG, "readJournal - " + e);
+            mLinkedHashMap.clear();
+            cacheSize = 0;
+            cacheByteSize = 0;
+            return false;
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "readJournal - " + e);
+            mLinkedHashMap.clear();
+            cacheSize = 0;
+            cacheByteSize = 0;
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "readJournal - " + cacheSize + " entries, " + cacheByteSize + " bytes");
+        }
+
+        if (flat) {
+            // Left without a writer, so the constructor writes a journal of the new version
+            moveFlatEntries();
+            return true;
+        }
+        if (damaged) {
+            // Left without a writer as well, so the constructor writes a whole journal
+            Log.w(TAG, "readJournal - journal cut short or damaged, rebuilding");
+            return true;
+        }
+
+        try {
+            mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journalFile, true), DEFAULT_URL_ENCODING),
+                    Utils.IO_BUFFER_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "readJournal - " + e);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the line cannot be parsed, in which case it is skipped.
+     */
+    private boolean readJournalLine(String line, Set<String> dirtyKeys, boolean flat)
+            throws IOException {
+        final String[] parts = line.split(" ");
+        final String key;
+        final long length;
+        try {
+            if (parts.length != (CLEAN.equals(parts[0]) ? 3 : 2)) {
+                return false;
+            }
+            key = URLDecoder.decode(parts[1], DEFAULT_URL_ENCODING);
+            length = parts.length == 3 ? Long.parseLong(parts[2]) : 0;
+        } catch (IllegalArgumentException e) {
+            // A bad escape in the key, or a bad length
+            return false;
+        }
+        if (length < 0) {
+            return false;
+        }
+
+        if (CLEAN.equals(parts[0])) {
+            dirtyKeys.remove(key);
+            removeEntry(key);
+            put(key, flat ? createFlatFilePath(mCacheDir, key) : createFilePath(mCacheDir, key),
+                    length);
+        } else if (DIRTY.equals(parts[0])) {
+            dirtyKeys.add(key);
+        } else if (REMOVE.equals(parts[0])) {
+            dirtyKeys.remove(key);
+            removeEntry(key);
+        } else if (READ.equals(parts[0])) {
+            // Moves the entry to the end of the access order
+            mLinkedHashMap.get(key);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            if (length == 0) {
+                return true;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Move the files of entries read from a journal of flat files into their subdirectories,
+     * keeping the LRU order. Entries whose file cannot be moved are dropped.
+     */
+    private void moveFlatEntries() {
+        final List<CacheEntry> entries = new ArrayList<CacheEntry>(mLinkedHashMap.values());
+        for (CacheEntry entry : entries) {
+            removeEntry(entry);
+            final String path = createFilePath(mCacheDir, entry.key);
+            if (moveFile(new File(entry.file), path)) {
+                put(entry.key, path, entry.length);
+            }
+        }
+    }
+
+    /**
+     * Move a file to a path in a subdirectory, creating the subdirectory if needed. The file is
+     * deleted if it cannot be moved.
+     *
+     * @return true if the file was moved.
+     */
+    private static boolean moveFile(File file, String path) {
+        final File target = new File(path);
+        target.getParentFile().mkdirs();
+        if (file.renameTo(target)) {
+            return true;
+        }
+        Log.w(TAG, "moveFile - could not move " + file);
+        file.delete();
+        return false;
+    }
+
+    /**
+     * Write a new journal with one CLEAN line per entry, least recently used first, and replace the
+     * current one with it.
+     */
+    private void rebuildJournal() {
+        closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+
+        final File journalFile = new File(mCacheDir, JOURNAL_FILE);
+        final File journalFileTmp = new File(mCacheDir, JOURNAL_FILE_TMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journalFileTmp), DEFAULT_URL_ENCODING),
+                    Utils.IO_BUFFER_SIZE);
+            writer.write(JOURNAL_MAGIC + "\n" + JOURNAL_VERSION + "\n\n");
+            for (Entry<String, CacheEntry> entry : mLinkedHashMap.entrySet()) {
+                writer.write(CLEAN + ' ' + encodeKey(entry.getKey()) + ' '
+                        + entry.getValue().length + '\n');
+            }
+            for (String key : mDirtyKeys) {
+                writer.write(DIRTY + ' ' + encodeKey(key) + '\n');
+            }
+            writer.close();
+            writer = null;
+
+            if (!journalFileTmp.renameTo(journalFile)) {
+                throw new IOException("Could not rename " + journalFileTmp);
+            }
+            mRedundantOpCount = 0;
+            mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journalFile, true), DEFAULT_URL_ENCODING),
+                    Utils.IO_BUFFER_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "rebuildJournal - " + e);
+        } finally {
+            closeQuietly(writer);
+            journalFileTmp.delete();
+        }
+    }
+
+    private void rebuildJournalIfNeeded() {
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mLinkedHashMap.size()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * Append an operation to the journal. Only lines that change what is on disk are flushed right
+     * away, losing a few READ lines in a crash only loses a little LRU order.
+     */
+    private void journal(String op, String key, long length) {
+        if (DIRTY.equals(op)) {
+            mDirtyKeys.add(key);
+        } else if (mDirtyKeys.remove(key)) {
+            // Wake threads in awaitEdit
+            mLinkedHashMap.notifyAll();
+        }
+
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            if (CLEAN.equals(op)) {
+                mJournalWriter.write(op + ' ' + encodeKey(key) + ' ' + length + '\n');
+            } else {
+                mJournalWriter.write(op + ' ' + encodeKey(key) + '\n');
+            }
+            if (!READ.equals(op)) {
+                mJournalWriter.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "journal - " + e);
+        }
+
+        // Every line but the CLEAN lines of entries still in the cache is redundant once the
+        // write it belongs to is done. Those CLEAN lines are counted once the entries go.
+        if (!CLEAN.equals(op)) {
+            mRedundantOpCount++;
+        }
+        if (!DIRTY.equals(op)) {
+            rebuildJournalIfNeeded();
+        }
+    }
+
+    private static String encodeKey(String key) throws UnsupportedEncodingException {
+        return URLEncoder.encode(key, DEFAULT_URL_ENCODING);
+    }
+
     /**
      * Add a bitmap to the disk cache.
      *
@@ -154,61 +555,165 @@ public class DiskLruCache {
      * @param data The bitmap to store.
      */
     public void put(String key, Bitmap data) {
+        final Editor editor = edit(key);
+        if (editor == null) {
+            return;
+        }
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(editor.newOutputStream(), Utils.IO_BUFFER_SIZE);
+            if (data.compress(mCompressFormat, mCompressQuality, out)) {
+                out.close();
+                out = null;
+                editor.commit();
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in put: " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+            editor.abortUnlessCommitted();
+        }
+    }
+
+    /**
+     * Add an already compressed image to the disk cache.
+     *
+     * @param key A unique identifier for the image.
+     * @param data The compressed image.
+     */
+    public void put(String key, byte[] data) {
+        final Editor editor = edit(key);
+        if (editor == null) {
+            return;
+        }
+        OutputStream out = null;
+        try {
+            out = editor.newOutputStream();
+            out.write(data);
+            out.close();
+            out = null;
+            editor.commit();
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in put: " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+            editor.abortUnlessCommitted();
+        }
+    }
+
+    /**
+     * Start writing an entry. Only one Editor can be open per key, and only for keys which are not
+     * cached yet.
+     *
+     * @param key A unique identifier for the image.
+     * @return An Editor to write the entry with, which must be committed or aborted, or null if the
+     *         key is already cached or being written.
+     */
+    public Editor edit(String key) {
+        synchronized (mLinkedHashMap) {
+            if (mLinkedHashMap.containsKey(key) || mDirtyKeys.contains(key)) {
+                return null;
+            }
+            journal(DIRTY, key, 0);
+        }
+        return new Editor(key);
+    }
+
+    /**
+     * Wait for the Editor open for a key, if there is one, to be committed or aborted. Meant for
+     * threads which found {@link #edit(String)} returning null for a key that is not cached yet,
+     * and want the entry another thread is writing rather than writing it again.
+     *
+     * @param key A unique identifier for the image.
+     * @param timeoutMillis How long to wait at most.
+     * @return false if the calling thread was interrupted while waiting.
+     */
+    public boolean awaitEdit(String key, long timeoutMillis) {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
         synchronized (mLinkedHashMap) {
-            if (mLinkedHashMap.get(key) == null) {
+            long remaining = timeoutMillis;
+            while (mDirtyKeys.contains(key) && remaining > 0) {
                 try {
-                    final String file = createFilePath(mCacheDir, key);
-                    if (writeBitmapToFile(data, file)) {
-                        put(key, file);
-                        flushCache();
-                    }
-                } catch (final FileNotFoundException e) {
-                    Log.e(TAG, "Error in put: " + e.getMessage());
-                } catch (final IOException e) {
-                    Log.e(TAG, "Error in put: " + e.getMessage());
+                    mLinkedHashMap.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Delete the files of evicted entries, each under the lock for its key so no reader is halfway
+     * through it. Must not hold any lock, a file is kept if its key was cached again meanwhile.
+     */
+    private void deleteEvicted(List<CacheEntry> evicted) {
+        if (evicted == null) {
+            return;
+        }
+        for (CacheEntry entry : evicted) {
+            synchronized (lockFor(entry.key)) {
+                if (!mLinkedHashMap.containsKey(entry.key)) {
+                    new File(entry.file).delete();
                 }
             }
         }
     }
 
-    private void put(String key, String file) {
-        mLinkedHashMap.put(key, file);
+    private Object lockFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return mKeyLocks[hash & (KEY_LOCK_STRIPES - 1)];
+    }
+
+    private void put(String key, String file, long length) {
+        mLinkedHashMap.put(key, new CacheEntry(key, file, length));
         cacheSize = mLinkedHashMap.size();
-        cacheByteSize += new File(file).length();
+        cacheByteSize += length;
     }
 
-    void putFromFetcher(String url)
-    {
-        put(url, createFilePath(url));
+    private void removeEntry(String key) {
+        final CacheEntry entry = mLinkedHashMap.get(key);
+        if (entry != null) {
+            removeEntry(entry);
+        }
+    }
+
+    private void removeEntry(CacheEntry entry) {
+        mLinkedHashMap.remove(entry.key);
+        cacheSize = mLinkedHashMap.size();
+        cacheByteSize -= entry.length;
     }
 
     /**
      * Flush the cache, removing oldest entries if the total size is over the specified cache size.
      * Note that this isn't keeping track of stale files in the cache directory that aren't in the
      * HashMap. If the images and keys in the disk cache change often then they probably won't ever
-     * be removed.
+     * be removed. Must hold mLinkedHashMap.
+     *
+     * @return The removed entries, whose files still have to be deleted.
      */
-    private void flushCache() {
-        Entry<String, String> eldestEntry;
-        File eldestFile;
-        long eldestFileSize;
+    private List<CacheEntry> flushCache() {
+        final List<CacheEntry> evicted = new ArrayList<CacheEntry>(MAX_REMOVALS);
+        CacheEntry eldestEntry;
         int count = 0;
 
         while (count < MAX_REMOVALS &&
                 (cacheSize > maxCacheItemSize || cacheByteSize > maxCacheByteSize)) {
-            eldestEntry = mLinkedHashMap.entrySet().iterator().next();
-            eldestFile = new File(eldestEntry.getValue());
-            eldestFileSize = eldestFile.length();
-            mLinkedHashMap.remove(eldestEntry.getKey());
-            eldestFile.delete();
-            cacheSize = mLinkedHashMap.size();
-            cacheByteSize -= eldestFileSize;
+            eldestEntry = mLinkedHashMap.values().iterator().next();
+            removeEntry(eldestEntry);
+            journal(REMOVE, eldestEntry.key, 0);
+            evicted.add(eldestEntry);
             count++;
             if (BuildConfig.DEBUG) {
-                Log.d(TAG, "flushCache - Removed cache file, " + eldestFile + ", "
-                        + eldestFileSize);
+                Log.d(TAG, "flushCache - Removed cache file, " + eldestEntry.file + ", "
+                        + eldestEntry.length);
             }
         }
+        return evicted;
     }
 
     /**
@@ -218,24 +723,73 @@ public class DiskLruCache {
      * @return The bitmap or null if not found
      */
     public Bitmap get(String key) {
-        synchronized (mLinkedHashMap) {
-            final String file = mLinkedHashMap.get(key);
-            if (file != null) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "Disk cache hit");
+        final Snapshot snapshot = getSnapshot(key);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Disk cache hit");
+            }
+            return BitmapFactory.decodeStream(
+                    new BufferedInputStream(snapshot.getInputStream(), Utils.IO_BUFFER_SIZE),
+                    null, null);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Get the compressed bytes of an image from the disk cache, without decoding them.
+     *
+     * @param key The unique identifier for the image
+     * @return The bytes of the file or null if not found
+     */
+    public byte[] getBytes(String key) {
+        final Snapshot snapshot = getSnapshot(key);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return readFully(snapshot.getInputStream(), snapshot.getLength());
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in getBytes: " + e.getMessage());
+            return null;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Open an entry for reading, marking it as the most recently used.
+     *
+     * @param key The unique identifier for the image
+     * @return A Snapshot of the entry, which must be closed, or null if not found
+     */
+    public Snapshot getSnapshot(String key) {
+        synchronized (lockFor(key)) {
+            final CacheEntry entry;
+            synchronized (mLinkedHashMap) {
+                entry = mLinkedHashMap.get(key);
+                if (entry == null) {
+                    return null;
                 }
-                return BitmapFactory.decodeFile(file);
-            } else {
-                final String existingFile = createFilePath(mCacheDir, key);
-                if (new File(existingFile).exists()) {
-                    put(key, existingFile);
-                    if (BuildConfig.DEBUG) {
-                        Log.d(TAG, "Disk cache hit (existing file)");
+                journal(READ, key, 0);
+            }
+
+            try {
+                return new Snapshot(new FileInputStream(entry.file), entry.length);
+            } catch (final FileNotFoundException e) {
+                // The file is gone, drop the entry
+                Log.e(TAG, "Error in getSnapshot: " + e.getMessage());
+                synchronized (mLinkedHashMap) {
+                    if (mLinkedHashMap.get(key) == entry) {
+                        removeEntry(entry);
+                        journal(REMOVE, key, 0);
                     }
-                    return BitmapFactory.decodeFile(existingFile);
                 }
+                return null;
             }
-            return null;
         }
     }
 
@@ -246,26 +800,23 @@ public class DiskLruCache {
      * @return true if found, false otherwise
      */
     public boolean containsKey(String key) {
-        // See if the key is in our HashMap
-        if (mLinkedHashMap.containsKey(key)) {
-            return true;
-        }
-
-        // Now check if there's an actual file that exists based on the key
-        final String existingFile = createFilePath(mCacheDir, key);
-        if (new File(existingFile).exists()) {
-            // File found, add it to the HashMap for future use
-            put(key, existingFile);
-            return true;
-        }
-        return false;
+        // The journal keeps the HashMap in step with the files on disk
+        return mLinkedHashMap.containsKey(key);
     }
 
     /**
      * Removes all disk cache entries from this instance cache dir
      */
     public void clearCache() {
-        DiskLruCache.clearCache(mCacheDir);
+        synchronized (mLinkedHashMap) {
+            closeQuietly(mJournalWriter);
+            mJournalWriter = null;
+            DiskLruCache.clearCache(mCacheDir);
+            mLinkedHashMap.clear();
+            cacheSize = 0;
+            cacheByteSize = 0;
+            rebuildJournal();
+        }
     }
 
     /**
@@ -288,9 +839,32 @@ public class DiskLruCache {
      * @param cacheDir The directory to remove the cache files from
      */
     private static void clearCache(File cacheDir) {
+        deleteShards(cacheDir);
         final File[] files = cacheDir.listFiles(cacheFileFilter);
-        for (int i=0; i<files.length; i++) {
-            files[i].delete();
+        if (files != null) {
+            for (int i=0; i<files.length; i++) {
+                files[i].delete();
+            }
+        }
+        new File(cacheDir, JOURNAL_FILE).delete();
+    }
+
+    /**
+     * Delete the files in the subdirectories of a cache directory, and the subdirectories.
+     */
+    private static void deleteShards(File cacheDir) {
+        final File[] shards = cacheDir.listFiles(shardFilter);
+        if (shards == null) {
+            return;
+        }
+        for (File shard : shards) {
+            final File[] files = shard.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            shard.delete();
         }
     }
 
@@ -323,17 +897,47 @@ public class DiskLruCache {
      */
     public static String createFilePath(File cacheDir, String key) {
         try {
-            // Use URLEncoder to ensure we have a valid filename, a tad hacky but it will do for
-            // this example
+            final String hash = hashKey(key);
+            return cacheDir.getAbsolutePath() + File.separator
+                    + hash.substring(0, SHARD_DIGITS) + File.separator + hash;
+        } catch (final UnsupportedEncodingException e) {
+            Log.e(TAG, "createFilePath - " + e);
+        } catch (final NoSuchAlgorithmException e) {
+            Log.e(TAG, "createFilePath - " + e);
+        }
+
+        return null;
+    }
+
+    /**
+     * The path of an entry in the flat layout of older versions, only used to move the files.
+     */
+    private static String createFlatFilePath(File cacheDir, String key) {
+        try {
             return cacheDir.getAbsolutePath() + File.separator +
                     CACHE_FILENAME_PREFIX + URLEncoder.encode(key.replace("*", ""), DEFAULT_URL_ENCODING);
         } catch (final UnsupportedEncodingException e) {
-            Log.e(TAG, "createFilePath - " + e);
+            Log.e(TAG, "createFlatFilePath - " + e);
         }
 
         return null;
     }
 
+    /**
+     * @return The SHA-1 hash of a key, as 40 lower case hex digits.
+     */
+    private static String hashKey(String key)
+            throws UnsupportedEncodingException, NoSuchAlgorithmException {
+        final byte[] digest =
+                MessageDigest.getInstance(HASH_ALGORITHM).digest(key.getBytes(DEFAULT_URL_ENCODING));
+        final char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
     /**
      * Create a constant cache file path using the current cache directory and an image key.
      *
@@ -355,25 +959,141 @@ public class DiskLruCache {
         mCompressQuality = quality;
     }
 
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignored
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in, long length) throws IOException {
+        final byte[] data = new byte[(int) length];
+        int offset = 0;
+        while (offset < data.length) {
+            final int read = in.read(data, offset, data.length - offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            offset += read;
+        }
+        return data;
+    }
+
     /**
-     * Writes a bitmap to a file. Call {@link DiskLruCache#setCompressParams(CompressFormat, int)}
-     * first to set the target bitmap compression and format.
-     *
-     * @param bitmap
-     * @param file
-     * @return
+     * Writes an entry to a temp file, which replaces the file of the entry on {@link #commit()}.
+     * Until then readers do not see the entry at all. Not thread safe, use from one thread.
      */
-    private boolean writeBitmapToFile(Bitmap bitmap, String file)
-            throws IOException, FileNotFoundException {
+    public final class Editor {
+        private final String key;
+        private final File file;
+        private final File tempFile;
+        private boolean done;
 
-        OutputStream out = null;
-        try {
-            out = new BufferedOutputStream(new FileOutputStream(file), Utils.IO_BUFFER_SIZE);
-            return bitmap.compress(mCompressFormat, mCompressQuality, out);
-        } finally {
-            if (out != null) {
-                out.close();
+        private Editor(String key) {
+            this.key = key;
+            this.file = new File(createFilePath(mCacheDir, key));
+            this.tempFile = new File(file.getPath() + TEMP_FILENAME_SUFFIX);
+        }
+
+        /**
+         * @return A stream to write the entry to, which must be closed before committing.
+         */
+        public OutputStream newOutputStream() throws FileNotFoundException {
+            tempFile.getParentFile().mkdirs();
+            return new FileOutputStream(tempFile);
+        }
+
+        /**
+         * Publish the written entry, by renaming the temp file to the file of the entry.
+         */
+        public void commit() throws IOException {
+            if (done) {
+                throw new IllegalStateException("Editor already committed or aborted");
             }
+            final List<CacheEntry> evicted;
+            synchronized (lockFor(key)) {
+                final long length = tempFile.length();
+                if (!tempFile.renameTo(file)) {
+                    abort();
+                    throw new IOException("Could not rename " + tempFile);
+                }
+                done = true;
+                synchronized (mLinkedHashMap) {
+                    put(key, file.getPath(), length);
+                    journal(CLEAN, key, length);
+                    evicted = flushCache();
+                }
+            }
+            deleteEvicted(evicted);
+        }
+
+        /**
+         * Throw away what was written, the entry stays uncached.
+         */
+        public void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            tempFile.delete();
+            synchronized (mLinkedHashMap) {
+                journal(REMOVE, key, 0);
+            }
+        }
+
+        /**
+         * Abort unless the entry was committed, for use in a finally block.
+         */
+        public void abortUnlessCommitted() {
+            abort();
+        }
+    }
+
+    /**
+     * A committed entry opened for reading. The contents never change while it is open, even if
+     * the entry is evicted meanwhile.
+     */
+    public static final class Snapshot implements Closeable {
+        private final InputStream in;
+        private final long length;
+
+        private Snapshot(InputStream in, long length) {
+            this.in = in;
+            this.length = length;
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        /**
+         * @return The length of the entry in bytes.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * A file in the cache, with its length as recorded in the journal.
+     */
+    private static class CacheEntry {
+        final String key;
+        final String file;
+        final long length;
+
+        CacheEntry(String key, String file, long length) {
+            this.key = key;
+            this.file = file;
+            this.length = length;
         }
     }
 }
@@ -0,0 +1,75 @@
+package co.touchlab.thumbcache.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs posted Runnables on the UI thread in batches, at most once per frame. When many images
+ * finish loading at the same time this avoids flooding the main looper with one message each.
+ * Choreographer would line the batches up with vsync exactly, but it needs API 16, so batches are
+ * lined up with a fixed frame interval on the uptime clock instead.
+ */
+class FrameBatchedExecutor implements Executor
+{
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    private static final FrameBatchedExecutor instance = new FrameBatchedExecutor();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Runnable> pending = new ArrayList<Runnable>();
+    private boolean scheduled = false;
+
+    private final Runnable flush = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            final List<Runnable> batch;
+            synchronized (pending)
+            {
+                batch = new ArrayList<Runnable>(pending);
+                pending.clear();
+                scheduled = false;
+            }
+
+            for (Runnable runnable : batch)
+            {
+                runnable.run();
+            }
+        }
+    };
+
+    static FrameBatchedExecutor getInstance()
+    {
+        return instance;
+    }
+
+    private FrameBatchedExecutor()
+    {
+    }
+
+    /**
+     * Queue a Runnable to run on the UI thread with the next batch. May be called from any thread.
+     */
+    @Override
+    public void execute(Runnable runnable)
+    {
+        synchronized (pending)
+        {
+            pending.add(runnable);
+            if (scheduled)
+            {
+                return;
+            }
+            scheduled = true;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        handler.postAtTime(flush, now - (now % FRAME_INTERVAL_MS) + FRAME_INTERVAL_MS);
+    }
+}
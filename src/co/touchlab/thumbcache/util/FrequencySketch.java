@@ -0,0 +1,160 @@
+package co.touchlab.thumbcache.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates how often each key was asked for recently, in a fixed amount of memory. This is a
+ * count-min sketch of 4-bit counters, sixteen to a long: each key is counted in four counters and
+ * its frequency is the lowest of them, so collisions can only make it look more popular. Once as
+ * many keys have been counted as ten times the capacity, every counter is halved, so the sketch
+ * forgets what used to be popular.
+ * <p/>
+ * Counters are updated with compare-and-set, so counting never blocks.
+ */
+class FrequencySketch
+{
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private volatile AtomicLongArray table;
+    private volatile int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+    private final AtomicBoolean resetting = new AtomicBoolean();
+
+    FrequencySketch(int capacity)
+    {
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Grow the sketch to count about the given number of keys accurately. Counts are lost when it
+     * grows.
+     */
+    void ensureCapacity(int capacity)
+    {
+        final int length = tableSizeFor(Math.max(capacity, 16));
+        final AtomicLongArray current = table;
+        if (current != null && current.length() >= length)
+        {
+            return;
+        }
+        table = new AtomicLongArray(length);
+        sampleSize = 10 * length;
+        additions.set(0);
+    }
+
+    /**
+     * @return The estimated number of times the key was counted recently, at most 15.
+     */
+    int frequency(Object key)
+    {
+        final AtomicLongArray current = table;
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++)
+        {
+            final int index = indexOf(hash, i, current.length());
+            final int count = (int)((current.get(index) >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Count one more request for the key.
+     */
+    void increment(Object key)
+    {
+        final AtomicLongArray current = table;
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+
+        boolean added = false;
+        for (int i = 0; i < 4; i++)
+        {
+            added |= incrementAt(current, indexOf(hash, i, current.length()), start + i);
+        }
+
+        if (added && additions.incrementAndGet() >= sampleSize)
+        {
+            reset(current);
+        }
+    }
+
+    private static boolean incrementAt(AtomicLongArray table, int index, int counter)
+    {
+        final int offset = counter << 2;
+        final long mask = 0xfL << offset;
+        while (true)
+        {
+            final long value = table.get(index);
+            if ((value & mask) == mask)
+            {
+                return false;
+            }
+            if (table.compareAndSet(index, value, value + (1L << offset)))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Halve every counter, by whichever thread gets here first.
+     */
+    private void reset(AtomicLongArray current)
+    {
+        if (!resetting.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            for (int i = 0; i < current.length(); i++)
+            {
+                while (true)
+                {
+                    final long value = current.get(i);
+                    if (current.compareAndSet(i, value, (value >>> 1) & RESET_MASK))
+                    {
+                        break;
+                    }
+                }
+            }
+            additions.set(additions.get() / 2);
+        }
+        finally
+        {
+            resetting.set(false);
+        }
+    }
+
+    private static int indexOf(int hash, int i, int length)
+    {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int)h & (length - 1);
+    }
+
+    private static int spread(int hash)
+    {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    private static int tableSizeFor(int capacity)
+    {
+        int size = 1;
+        while (size < capacity && size < (1 << 30))
+        {
+            size <<= 1;
+        }
+        return size;
+    }
+}
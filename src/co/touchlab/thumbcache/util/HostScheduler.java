@@ -0,0 +1,187 @@
+package co.touchlab.thumbcache.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Sits in front of a {@link LIFOThreadPoolProcessor} and limits how many tasks for any one host can
+ * be in it, queued or running, at the same time. Tasks over the limit wait here, newest first, and
+ * hosts with waiting tasks are served in turn as slots free up. One slow host can then only tie up
+ * a few threads, instead of every thread while requests to other hosts starve.
+ * <p/>
+ * Like the queue of the pool, the tasks waiting for any one host are bounded. Once a host has as
+ * many waiting as allowed, the waiting task with the lowest priority is cancelled to make room,
+ * which may be the new task itself.
+ */
+class HostScheduler
+{
+    private final LIFOThreadPoolProcessor pool;
+    private final int maxTasksPerHost;
+    private final int maxWaitingPerHost;
+
+    // Guarded by "this"
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+    private final List<Host> hostOrder = new ArrayList<Host>();
+    private int nextHost = 0;
+
+    private static class Host
+    {
+        private final String name;
+        private final PriorityQueue<LIFOTask> waiting = new PriorityQueue<LIFOTask>();
+        private int active = 0;
+
+        private Host(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /**
+     * @param pool              The pool to run the tasks in.
+     * @param maxTasksPerHost   The most tasks for one host which may be in the pool at once.
+     * @param maxWaitingPerHost The most tasks for one host which may wait here.
+     */
+    HostScheduler(LIFOThreadPoolProcessor pool, int maxTasksPerHost, int maxWaitingPerHost)
+    {
+        this.pool = pool;
+        this.maxTasksPerHost = maxTasksPerHost;
+        this.maxWaitingPerHost = maxWaitingPerHost;
+    }
+
+    void submitTask(LIFOTask task, String hostName)
+    {
+        LIFOTask rejected = null;
+        synchronized (this)
+        {
+            Host host = hosts.get(hostName);
+            if (host == null)
+            {
+                host = new Host(hostName);
+                hosts.put(hostName, host);
+                hostOrder.add(host);
+            }
+            if (host.waiting.size() >= maxWaitingPerHost)
+            {
+                rejected = findLowestPriority(host);
+                if (rejected == null || task.compareTo(rejected) > 0)
+                {
+                    // The new task would be the first to go
+                    rejected = task;
+                }
+                else
+                {
+                    host.waiting.remove(rejected);
+                    // It no longer holds a place here, so its cancellation must not free one
+                    rejected.setHostScheduler(null, null);
+                }
+            }
+            if (rejected != task)
+            {
+                task.setHostScheduler(this, hostName);
+                host.waiting.add(task);
+            }
+        }
+
+        // Cancelled outside the lock, as for tasks the pool rejects
+        if (rejected != null)
+        {
+            rejected.cancel(false);
+        }
+        dispatch();
+    }
+
+    private static LIFOTask findLowestPriority(Host host)
+    {
+        LIFOTask lowest = null;
+        for (LIFOTask task : host.waiting)
+        {
+            if (lowest == null || task.compareTo(lowest) > 0)
+            {
+                lowest = task;
+            }
+        }
+        return lowest;
+    }
+
+    /**
+     * Called by a task once it has finished or been cancelled, which frees up its host's slot if it
+     * had one.
+     */
+    void onTaskDone(LIFOTask task, String hostName)
+    {
+        synchronized (this)
+        {
+            final Host host = hosts.get(hostName);
+            if (host == null)
+            {
+                return;
+            }
+            // If it was still waiting it never made it to the pool, so there is no slot to free
+            if (!host.waiting.remove(task))
+            {
+                host.active--;
+            }
+            if (host.active == 0 && host.waiting.isEmpty())
+            {
+                hosts.remove(hostName);
+                hostOrder.remove(host);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Change the priority of a task that is waiting here for its host.
+     *
+     * @return true if the task was waiting here and has been given the new priority.
+     */
+    synchronized boolean reprioritize(LIFOTask task, String hostName, long priority)
+    {
+        final Host host = hosts.get(hostName);
+        if (host == null || !host.waiting.remove(task))
+        {
+            return false;
+        }
+        task.setPriority(priority);
+        host.waiting.add(task);
+        return true;
+    }
+
+    /**
+     * Move waiting tasks into the pool, one host at a time in turn, while their hosts have free
+     * slots. The pool is called outside the lock, as it may reject and cancel a task, which calls
+     * back into {@link #onTaskDone(LIFOTask, String)}.
+     */
+    private void dispatch()
+    {
+        final List<LIFOTask> ready = new ArrayList<LIFOTask>();
+        synchronized (this)
+        {
+            boolean dispatched = true;
+            while (dispatched && !hostOrder.isEmpty())
+            {
+                dispatched = false;
+                for (int i = 0; i < hostOrder.size(); i++)
+                {
+                    final Host host = hostOrder.get((nextHost + i) % hostOrder.size());
+                    if (host.active < maxTasksPerHost && !host.waiting.isEmpty())
+                    {
+                        ready.add(host.waiting.poll());
+                        host.active++;
+                        nextHost = (hostOrder.indexOf(host) + 1) % hostOrder.size();
+                        dispatched = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (LIFOTask task : ready)
+        {
+            pool.submitTask(task);
+        }
+    }
+}
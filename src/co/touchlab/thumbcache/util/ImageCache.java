@@ -16,19 +16,28 @@
 
 package co.touchlab.thumbcache.util;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.support.v4.app.FragmentActivity;
-import android.support.v4.util.LruCache;
+import android.graphics.BitmapFactory;
+import android.os.Process;
 import android.util.Log;
 
 import co.touchlab.thumbcache.BuildConfig;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 /**
- * This class holds our bitmap caches (memory and disk).
+ * This class holds our bitmap caches (memory and disk). There is one ImageCache per cache
+ * directory in the process, get it with {@link #findOrCreateCache}. The bitmaps in memory of all
+ * of them share a single memory cache, sized to the largest memCacheSize asked for.
  */
 public class ImageCache {
     private static final String TAG = "ImageCache";
@@ -36,6 +45,15 @@ public class ImageCache {
     // Default memory cache size
     private static final int DEFAULT_MEM_CACHE_SIZE = 1024 * 1024 * 5; // 5MB
 
+    // Default size of the pool of bitmaps kept for reuse
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 1024 * 2; // 2MB
+
+    // Default size of the memory cache of compressed images
+    private static final int DEFAULT_ENCODED_CACHE_SIZE = 1024 * 1024 * 2; // 2MB
+
+    // Default size of the memory cache of previews, at about half a kilobyte each
+    private static final int DEFAULT_PREVIEW_CACHE_SIZE = 1024 * 512; // 512KB
+
     // Default disk cache size
     private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
@@ -47,117 +65,399 @@ public class ImageCache {
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_CLEAR_DISK_CACHE_ON_START = false;
+    private static final boolean DEFAULT_BITMAP_POOL_ENABLED = true;
+    private static final boolean DEFAULT_ENCODED_CACHE_ENABLED = true;
+    private static final boolean DEFAULT_PREVIEW_CACHE_ENABLED = true;
+
+    // Default config to decode images without alpha to, half the size of ARGB_8888
+    private static final Bitmap.Config DEFAULT_OPAQUE_DECODE_CONFIG = Bitmap.Config.RGB_565;
+
+    // Separates the parts of a variant key and the cache prefix of a memory cache key, never part
+    // of a URL
+    private static final String VARIANT_SEPARATOR = "\n";
+
+    // Variants of each source held in the memory cache, by source. Guarded by itself.
+    private static final Map<String, List<Variant>> sVariants = new HashMap<String, List<Variant>>();
 
-    private DiskLruCache mDiskCache;
-    private LruCache<String, Bitmap> mMemoryCache;
+    // Variants held in the memory cache, by memory cache key. Guarded by sVariants.
+    private static final Map<String, Variant> sVariantKeys = new HashMap<String, Variant>();
+
+    // Opened on a background thread, null until mDiskCacheInitLatch is counted down
+    private volatile DiskLruCache mDiskCache;
+    private final CountDownLatch mDiskCacheInitLatch = new CountDownLatch(1);
+    // Shared by every ImageCache, keys are prefixed with mKeyPrefix
+    private ConcurrentLruCache<String, Bitmap> mMemoryCache;
+    private String mKeyPrefix;
+    private BitmapPool mBitmapPool;
+
+    // Compressed images, between the bitmaps in memory and the files on disk
+    private ConcurrentLruCache<String, byte[]> mEncodedCache;
+    private CompressFormat mCompressFormat;
+    private int mCompressQuality;
+    private Bitmap.Config mOpaqueDecodeConfig;
+
+    // Tiny blurred previews, shown while the image itself is loaded. Loaded from disk along with
+    // the disk cache, null until then.
+    private volatile PreviewCache mPreviewCache;
 
     /**
-     * Creating a new ImageCache object using the specified parameters.
+     * Creating a new ImageCache object using the specified parameters, only done by
+     * {@link ImageCacheRegistry} which sets up the shared memory cache and pool first.
      *
      * @param context The context to use
      * @param cacheParams The cache parameters to use to initialize the cache
      */
-    public ImageCache(Context context, ImageCacheParams cacheParams) {
+    ImageCache(Context context, ImageCacheParams cacheParams) {
         init(context, cacheParams);
     }
 
     /**
-     * Creating a new ImageCache object using the default parameters.
+     * Find and return the ImageCache for a cache directory, if there is none yet a new one is
+     * created with defaults. It lives as long as the process.
      *
      * @param context The context to use
-     * @param uniqueName A unique name that will be appended to the cache directory
+     * @param uniqueName A unique name to append to the cache directory
+     * @return The existing ImageCache for the directory or a new one if one did not exist.
      */
-    public ImageCache(Context context, String uniqueName) {
-        init(context, new ImageCacheParams(uniqueName));
+    public static ImageCache findOrCreateCache(final Context context, final String uniqueName) {
+        return findOrCreateCache(context, new ImageCacheParams(uniqueName));
     }
 
     /**
-     * Find and return an existing ImageCache stored in a {@link RetainFragment}, if not found a new
-     * one is created with defaults and saved to a {@link RetainFragment}.
+     * Find and return the ImageCache for the cache directory of the params, if there is none yet a
+     * new one is created using the supplied params. It lives as long as the process, so every
+     * activity using the directory shares it.
      *
-     * @param activity The calling {@link FragmentActivity}
-     * @param uniqueName A unique name to append to the cache directory
-     * @return An existing retained ImageCache object or a new one if one did not exist.
+     * @param context The context to use
+     * @param cacheParams The cache parameters to use if creating the ImageCache
+     * @return The existing ImageCache for the directory or a new one if one did not exist
      */
-    public static ImageCache findOrCreateCache(
-            final FragmentActivity activity, final String uniqueName) {
-        return findOrCreateCache(activity, new ImageCacheParams(uniqueName));
+    public static ImageCache findOrCreateCache(final Context context,
+            ImageCacheParams cacheParams) {
+        return ImageCacheRegistry.getCache(context, cacheParams);
     }
 
     /**
-     * Find and return an existing ImageCache stored in a {@link RetainFragment}, if not found a new
-     * one is created using the supplied params and saved to a {@link RetainFragment}.
+     * Only let images into the memory cache if they are asked for more often than the ones they
+     * would push out, so a fast scroll past many images cannot flush the popular ones. Off by
+     * default. Every ImageCache shares the one memory cache, so this is set for the whole process
+     * before the first ImageCache is created, for example from
+     * {@link android.app.Application#onCreate()}.
      *
-     * @param activity The calling {@link FragmentActivity}
-     * @param cacheParams The cache parameters to use if creating the ImageCache
-     * @return An existing retained ImageCache object or a new one if one did not exist
+     * @param enabled true for frequency based admission, false for plain LRU
+     * @throws IllegalStateException if an ImageCache with a memory cache was created already and
+     *             the setting differs
      */
-    public static ImageCache findOrCreateCache(
-            final FragmentActivity activity, ImageCacheParams cacheParams) {
-
-        // Search for, or create an instance of the non-UI RetainFragment
-        final RetainFragment mRetainFragment = RetainFragment.findOrCreateRetainFragment(
-                activity.getSupportFragmentManager());
+    public static void setMemoryCacheAdmissionEnabled(boolean enabled) {
+        ImageCacheRegistry.setMemoryCacheAdmissionEnabled(enabled);
+    }
 
-        // See if we already have an ImageCache stored in RetainFragment
-        ImageCache imageCache = (ImageCache) mRetainFragment.getObject();
+    /**
+     * Initialize the cache, providing all parameters. The memory caches are ready straight away,
+     * the disk cache and previews are opened on a background thread.
+     *
+     * @param context The context to use
+     * @param cacheParams The cache parameters to initialize the cache
+     */
+    private void init(Context context, final ImageCacheParams cacheParams) {
+        // Set up the memory cache of compressed images, a miss in the memory cache of bitmaps can
+        // then be served by decoding them without any file I/O
+        mCompressFormat = cacheParams.compressFormat;
+        mCompressQuality = cacheParams.compressQuality;
+        mOpaqueDecodeConfig = cacheParams.opaqueDecodeConfig;
+        if (cacheParams.encodedCacheEnabled) {
+            mEncodedCache = new ConcurrentLruCache<String, byte[]>(cacheParams.encodedCacheSize) {
+                @Override
+                protected int sizeOf(String key, byte[] encoded) {
+                    return encoded.length;
+                }
+            };
+        }
 
-        // No existing ImageCache, create one and store it in RetainFragment
-        if (imageCache == null) {
-            imageCache = new ImageCache(activity, cacheParams);
-            mRetainFragment.setObject(imageCache);
+        // Use the pool and memory cache shared by every ImageCache
+        if (cacheParams.bitmapPoolEnabled) {
+            mBitmapPool = ImageCacheRegistry.getBitmapPool();
+        }
+        if (cacheParams.memoryCacheEnabled) {
+            mMemoryCache = ImageCacheRegistry.getMemoryCache();
+            mKeyPrefix = cacheParams.uniqueName + VARIANT_SEPARATOR;
         }
 
-        return imageCache;
+        // Opening the disk cache creates the directory, checks free space and reads the journal,
+        // none of which should hold up the UI thread. Not on the disk pool, whose tasks wait for it.
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                initDiskCache(appContext, cacheParams);
+            }
+        }, "ImageCache init " + cacheParams.uniqueName).start();
     }
 
     /**
-     * Initialize the cache, providing all parameters.
-     *
-     * @param context The context to use
-     * @param cacheParams The cache parameters to initialize the cache
+     * Open the disk cache and load the previews, then let waiting threads through.
      */
-    private void init(Context context, ImageCacheParams cacheParams) {
-        final File diskCacheDir = DiskLruCache.getDiskCacheDir(context, cacheParams.uniqueName);
+    private void initDiskCache(Context context, ImageCacheParams cacheParams) {
+        try {
+            final File diskCacheDir =
+                    DiskLruCache.getDiskCacheDir(context, cacheParams.uniqueName);
 
-        // Set up disk cache
-        if (cacheParams.diskCacheEnabled) {
-            mDiskCache = DiskLruCache.openCache(context, diskCacheDir, cacheParams.diskCacheSize);
-            mDiskCache.setCompressParams(cacheParams.compressFormat, cacheParams.compressQuality);
-            if (cacheParams.clearDiskCacheOnStart) {
-                mDiskCache.clearCache();
+            // Set up disk cache
+            if (cacheParams.diskCacheEnabled) {
+                final DiskLruCache diskCache =
+                        DiskLruCache.openCache(context, diskCacheDir, cacheParams.diskCacheSize);
+                if (diskCache != null) {
+                    diskCache.setCompressParams(
+                            cacheParams.compressFormat, cacheParams.compressQuality);
+                    if (cacheParams.clearDiskCacheOnStart) {
+                        diskCache.clearCache();
+                    }
+                }
+                mDiskCache = diskCache;
             }
+
+            // Set up the previews, kept on disk next to the disk cache if there is one
+            if (cacheParams.previewCacheEnabled) {
+                mPreviewCache = new PreviewCache(
+                        mDiskCache != null ? diskCacheDir : null, cacheParams.previewCacheSize);
+            }
+        } finally {
+            mDiskCacheInitLatch.countDown();
         }
+    }
 
-        // Set up memory cache
-        if (cacheParams.memoryCacheEnabled) {
-            mMemoryCache = new LruCache<String, Bitmap>(cacheParams.memCacheSize) {
-                /**
-                 * Measure item size in bytes rather than units which is more practical for a bitmap
-                 * cache
-                 */
-                @Override
-                protected int sizeOf(String key, Bitmap bitmap) {
-                    return Utils.getBitmapSize(bitmap);
-                }
-            };
+    /**
+     * Wait until the disk cache is open, which is quick unless the cache was only just created.
+     * Must not be called from the UI thread. If the thread is interrupted it stops waiting, and
+     * finds no disk cache if it is not open yet.
+     */
+    private void awaitDiskCacheInit() {
+        try {
+            mDiskCacheInitLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Shrink the caches of this ImageCache in response to memory pressure, the shared memory cache
+     * and pool are trimmed by {@link ImageCacheRegistry}.
+     *
+     * @param keepPercent How much of the full cache sizes to keep
+     */
+    void trimMemory(int keepPercent) {
+        if (mEncodedCache != null) {
+            mEncodedCache.trimToSize((int) ((long) mEncodedCache.maxSize() * keepPercent / 100));
         }
     }
 
     public void addBitmapToCache(String data, Bitmap bitmap) {
+        addBitmapToCache(data, bitmap, true);
+    }
+
+    /**
+     * Add a bitmap to the memory caches, and to the disk cache if diskAllowed is set and it is not
+     * there already.
+     */
+    private void addBitmapToCache(String data, Bitmap bitmap, boolean diskAllowed) {
         if (data == null || bitmap == null) {
             return;
         }
 
         // Add to memory cache
-        if (mMemoryCache != null && mMemoryCache.get(data) == null) {
-            mMemoryCache.put(data, bitmap);
+        if (mMemoryCache != null && mMemoryCache.peek(mKeyPrefix + data) == null) {
+            ImageCacheRegistry.regrowMemoryCache();
+            mMemoryCache.put(mKeyPrefix + data, bitmap);
+        }
+
+        // Add to the compressed memory cache and the disk cache, compressing only once for both
+        awaitDiskCacheInit();
+        final DiskLruCache diskCache = mDiskCache;
+        final boolean addToEncoded = mEncodedCache != null && mEncodedCache.peek(data) == null;
+        final boolean addToDisk =
+                diskAllowed && diskCache != null && !diskCache.containsKey(data);
+        if (addToEncoded || addToDisk) {
+            final byte[] encoded = compressBitmap(bitmap);
+            if (encoded != null) {
+                if (addToEncoded) {
+                    mEncodedCache.put(data, encoded);
+                }
+                if (addToDisk) {
+                    diskCache.put(data, encoded);
+                }
+            }
+        }
+    }
+
+    private byte[] compressBitmap(Bitmap bitmap) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!bitmap.compress(mCompressFormat, mCompressQuality, out)) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a compressed image, into a bitmap from the pool if there is one that fits.
+     */
+    @SuppressLint("NewApi")
+    private Bitmap decodeBitmap(byte[] encoded) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        if (mCompressFormat == CompressFormat.JPEG) {
+            // JPEG drops alpha when compressing, so these are always opaque
+            options.inPreferredConfig = mOpaqueDecodeConfig;
+        }
+        if (mBitmapPool != null) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+            options.inJustDecodeBounds = false;
+
+            if (mBitmapPool.addInBitmapOptions(options)) {
+                final Bitmap reusable = options.inBitmap;
+                try {
+                    final Bitmap bitmap =
+                            BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+                    if (bitmap == null) {
+                        mBitmapPool.put(reusable);
+                    }
+                    return bitmap;
+                } catch (IllegalArgumentException e) {
+                    // The pooled bitmap did not fit after all, decode into a new one
+                    options.inBitmap = null;
+                }
+            }
+        }
+        return BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+    }
+
+    /**
+     * Build the key a variant of a source image is cached under, so that every target size and
+     * transformation of the same source is cached separately.
+     *
+     * @param source Unique identifier of the source image, such as its URL
+     * @param transformation Identifies how the source was transformed, such as "crop"
+     * @param width The requested width of the variant
+     * @param height The requested height of the variant
+     * @return The cache key of the variant
+     */
+    public static String getVariantKey(String source, String transformation, int width,
+            int height) {
+        return source + VARIANT_SEPARATOR + transformation + VARIANT_SEPARATOR + width + "x"
+                + height;
+    }
+
+    /**
+     * Add a variant of a source image to the cache, under the key from
+     * {@link ImageCache#getVariantKey(String, String, int, int)}. While it is in the memory cache
+     * it can be found by {@link ImageCache#scaleFromLargerVariant}. If the source itself is in the
+     * disk cache, such as a download, the variant is only kept in memory: decoding it from the
+     * source again is cheap next to the disk cache room and the compress a copy would take.
+     *
+     * @param source Unique identifier of the source image, such as its URL
+     * @param transformation Identifies how the source was transformed, such as "crop"
+     * @param width The requested width of the variant
+     * @param height The requested height of the variant
+     * @param bitmap The variant
+     */
+    public void addVariantToCache(String source, String transformation, int width, int height,
+            Bitmap bitmap) {
+        if (source == null || bitmap == null) {
+            return;
+        }
+
+        final String key = getVariantKey(source, transformation, width, height);
+        awaitDiskCacheInit();
+        final DiskLruCache diskCache = mDiskCache;
+        addBitmapToCache(key, bitmap, diskCache == null || !diskCache.containsKey(source));
+
+        if (mMemoryCache != null) {
+            final String memoryKey = mKeyPrefix + key;
+            synchronized (sVariants) {
+                if (!sVariantKeys.containsKey(memoryKey) && mMemoryCache.peek(memoryKey) == bitmap) {
+                    final Variant variant =
+                            new Variant(this, source, key, transformation, width, height);
+                    sVariantKeys.put(memoryKey, variant);
+                    List<Variant> variants = sVariants.get(source);
+                    if (variants == null) {
+                        variants = new ArrayList<Variant>(2);
+                        sVariants.put(source, variants);
+                    }
+                    variants.add(variant);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the variant under a memory cache key, once it has left the memory cache.
+     */
+    static void removeVariant(String memoryKey) {
+        synchronized (sVariants) {
+            final Variant variant = sVariantKeys.remove(memoryKey);
+            if (variant != null) {
+                final List<Variant> variants = sVariants.get(variant.source);
+                variants.remove(variant);
+                if (variants.isEmpty()) {
+                    sVariants.remove(variant.source);
+                }
+            }
+        }
+    }
+
+    /**
+     * Produce a variant of a source image from the smallest larger variant with the same
+     * transformation in the memory cache, put there by any ImageCache. Scaling a bitmap that is already in
+     * memory is much cheaper than decoding the source again. The larger variant is kept from being
+     * reused by the bitmap pool while it is scaled.
+     *
+     * @param source Unique identifier of the source image, such as its URL
+     * @param transformation Identifies how the source was transformed, such as "crop"
+     * @param width The requested width
+     * @param height The requested height
+     * @param sameAspectRatio true if the transformation frames the image by the requested aspect
+     *            ratio, such as a crop, so only variants requested at the same aspect ratio fit
+     * @param scaler Produces the requested variant from the larger one
+     * @return The scaled bitmap, or null if no larger variant is in memory
+     */
+    public static Bitmap scaleFromLargerVariant(String source, String transformation, int width,
+            int height, boolean sameAspectRatio, VariantScaler scaler) {
+        Variant best = null;
+        synchronized (sVariants) {
+            final List<Variant> variants = sVariants.get(source);
+            if (variants == null) {
+                return null;
+            }
+            for (Variant variant : variants) {
+                if (variant.transformation.equals(transformation)
+                        && variant.width >= width && variant.height >= height
+                        && (!sameAspectRatio
+                                || (long) variant.width * height == (long) width * variant.height)
+                        && (best == null || variant.width * variant.height < best.width * best.height)) {
+                    best = variant;
+                }
+            }
         }
 
-        // Add to disk cache
-        if (mDiskCache != null && !mDiskCache.containsKey(data)) {
-            Log.d("mDiskCache-put", "Should not be called");
-            mDiskCache.put(data, bitmap);
+        final ImageCache cache = best != null ? best.cache : null;
+        final Bitmap larger = cache != null ? cache.getBitmapFromMemCache(best.key) : null;
+        if (larger == null) {
+            return null;
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Scaling from a " + best.width + "x" + best.height + " variant");
+        }
+        final BitmapPool pool = cache.mBitmapPool;
+        if (pool != null) {
+            pool.retain(larger);
+        }
+        try {
+            return scaler.scale(larger);
+        } finally {
+            if (pool != null) {
+                pool.release(larger);
+            }
         }
     }
 
@@ -169,7 +469,7 @@ public class ImageCache {
      */
     public Bitmap getBitmapFromMemCache(String data) {
         if (mMemoryCache != null) {
-            final Bitmap memBitmap = mMemoryCache.get(data);
+            final Bitmap memBitmap = mMemoryCache.get(mKeyPrefix + data);
             if (memBitmap != null) {
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "Memory cache hit");
@@ -181,26 +481,177 @@ public class ImageCache {
     }
 
     /**
-     * Get from disk cache.
+     * Keep a bitmap in the memory cache while it is displayed, so scrolling or loading other images
+     * cannot evict it and it is never decoded again while on screen. Pinned bitmaps do not count
+     * towards the memory cache size. Every successful call must be balanced by a call to
+     * {@link #unpinBitmap(String, Bitmap)}.
+     *
+     * @param data Unique identifier the bitmap was cached under
+     * @param bitmap The bitmap from the memory cache
+     * @return true if the bitmap was pinned, false if it is no longer in the memory cache
+     */
+    public boolean pinBitmap(String data, Bitmap bitmap) {
+        return mMemoryCache != null && mMemoryCache.pin(mKeyPrefix + data, bitmap);
+    }
+
+    /**
+     * Undo a call to {@link #pinBitmap(String, Bitmap)}, once the bitmap is no longer displayed.
+     * Once unpinned it may be evicted by the next write to the memory cache, never by this call.
+     *
+     * @param data Unique identifier the bitmap was cached under
+     * @param bitmap The bitmap from the memory cache
+     */
+    public void unpinBitmap(String data, Bitmap bitmap) {
+        if (mMemoryCache != null) {
+            mMemoryCache.unpin(mKeyPrefix + data, bitmap);
+        }
+    }
+
+    /**
+     * Create a tiny preview of an image from a bitmap of it, unless there is one already.
+     *
+     * @param data Unique identifier of the image, the same for all of its variants
+     * @param bitmap Any bitmap of the image
+     */
+    public void addPreviewToCache(String data, Bitmap bitmap) {
+        if (data == null || bitmap == null) {
+            return;
+        }
+        awaitDiskCacheInit();
+        final PreviewCache previewCache = mPreviewCache;
+        if (previewCache != null) {
+            previewCache.put(data, bitmap);
+        }
+    }
+
+    /**
+     * Get a tiny blurred preview of an image. This is cheap enough to call from the UI thread, and
+     * never waits for the previews to be loaded from disk.
+     *
+     * @param data Unique identifier of the image, the same for all of its variants
+     * @return A preview bitmap if there is one, null otherwise
+     */
+    public Bitmap getPreviewFromCache(String data) {
+        final PreviewCache previewCache = mPreviewCache;
+        if (previewCache != null) {
+            return previewCache.get(data);
+        }
+        return null;
+    }
+
+    /**
+     * Get from the memory cache of compressed images, or failing that from disk cache. Either way
+     * the image has to be decoded, and the disk cache may still be opening, so this should not be
+     * called from the UI thread.
      *
      * @param data Unique identifier for which item to get
      * @return The bitmap if found in cache, null otherwise
      */
     public Bitmap getBitmapFromDiskCache(String data) {
-        if (mDiskCache != null) {
-            return mDiskCache.get(data);
+        byte[] encoded = mEncodedCache != null ? mEncodedCache.get(data) : null;
+        if (encoded == null) {
+            awaitDiskCacheInit();
         }
-        return null;
+        final DiskLruCache diskCache = mDiskCache;
+        if (encoded == null && diskCache != null) {
+            encoded = diskCache.getBytes(data);
+            if (encoded != null && mEncodedCache != null) {
+                mEncodedCache.put(data, encoded);
+            }
+        }
+        return encoded != null ? decodeBitmap(encoded) : null;
     }
 
-    public DiskLruCache getDiskCache()
-    {
+    /**
+     * @return The disk cache, or null if there is none. Waits for it to be opened, so this should
+     *         not be called from the UI thread.
+     */
+    public DiskLruCache getDiskCache() {
+        awaitDiskCacheInit();
         return mDiskCache;
     }
 
+    /**
+     * @return The config images without alpha should be decoded to for this cache.
+     */
+    public Bitmap.Config getOpaqueDecodeConfig() {
+        return mOpaqueDecodeConfig;
+    }
+
+    /**
+     * @return The pool of bitmaps for reuse, or null if bitmaps are not reused.
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Clear the memory caches of this ImageCache, then its disk cache and previews. Safe to call
+     * from the UI thread: the disk cache may still be opening and deleting its files takes a while,
+     * so that part runs on a background thread and may not be done when this returns.
+     */
     public void clearCaches() {
-        mDiskCache.clearCache();
-        mMemoryCache.evictAll();
+        clearMemoryCaches();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                awaitDiskCacheInit();
+                if (mDiskCache != null) {
+                    mDiskCache.clearCache();
+                }
+                if (mPreviewCache != null) {
+                    mPreviewCache.clear();
+                }
+            }
+        }, "ImageCache clear").start();
+    }
+
+    private void clearMemoryCaches() {
+        if (mMemoryCache != null) {
+            // Only the bitmaps of this ImageCache, the memory cache is shared
+            for (String key : mMemoryCache.snapshot().keySet()) {
+                if (key.startsWith(mKeyPrefix)) {
+                    mMemoryCache.remove(key);
+                }
+            }
+        }
+        if (mEncodedCache != null) {
+            mEncodedCache.evictAll();
+        }
+    }
+
+    /**
+     * Produces a variant of an image from a larger variant of it.
+     */
+    public interface VariantScaler {
+        /**
+         * @param variant The larger variant, which must not be modified or kept
+         * @return The new variant
+         */
+        Bitmap scale(Bitmap variant);
+    }
+
+    /**
+     * A variant of a source image in the memory cache, put there by an ImageCache.
+     */
+    private static class Variant {
+        final ImageCache cache;
+        final String source;
+        final String key;
+        final String transformation;
+        final int width;
+        final int height;
+
+        Variant(ImageCache cache, String source, String key, String transformation, int width,
+                int height) {
+            this.cache = cache;
+            this.source = source;
+            this.key = key;
+            this.transformation = transformation;
+            this.width = width;
+            this.height = height;
+        }
     }
 
     /**
@@ -213,8 +664,17 @@ public class ImageCache {
         public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
         public int compressQuality = DEFAULT_COMPRESS_QUALITY;
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
+        public boolean encodedCacheEnabled = DEFAULT_ENCODED_CACHE_ENABLED;
+        public int encodedCacheSize = DEFAULT_ENCODED_CACHE_SIZE;
+        // Config to decode images without alpha to, images with alpha always use ARGB_8888. Use
+        // ARGB_8888 here too where image quality matters more than memory, such as full screen.
+        public Bitmap.Config opaqueDecodeConfig = DEFAULT_OPAQUE_DECODE_CONFIG;
+        public boolean previewCacheEnabled = DEFAULT_PREVIEW_CACHE_ENABLED;
+        public int previewCacheSize = DEFAULT_PREVIEW_CACHE_SIZE;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public boolean clearDiskCacheOnStart = DEFAULT_CLEAR_DISK_CACHE_ON_START;
+        public boolean bitmapPoolEnabled = DEFAULT_BITMAP_POOL_ENABLED;
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
 
         public ImageCacheParams(String uniqueName) {
             this.uniqueName = uniqueName;
@@ -0,0 +1,280 @@
+package co.touchlab.thumbcache.util;
+
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import co.touchlab.thumbcache.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide home of the image caches. Hands out a single {@link ImageCache} per cache directory,
+ * by its unique name, so screens using the same directory share one disk cache index rather than
+ * each reading it and evicting each other's files. The bitmaps in memory of every ImageCache share one
+ * memory cache and one bitmap pool, so there is a single memory budget for the process, which is
+ * trimmed under memory pressure.
+ */
+class ImageCacheRegistry
+{
+    private static final String TAG = "ImageCacheRegistry";
+
+    // Trim levels of ComponentCallbacks2 which are newer than the SDK this builds against, sent
+    // while the app is in the foreground
+    private static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    private static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+
+    // How long memory has to stay calm after a trim before the memory cache grows back by a step,
+    // and how many steps it takes to grow back to full size
+    private static final long REGROW_INTERVAL_MS = 10 * 1000;
+    private static final int REGROW_STEPS = 4;
+
+    // One cache per directory, by unique name, guarded by the class
+    private static final Map<String, ImageCache> caches = new HashMap<String, ImageCache>();
+
+    private static volatile ConcurrentLruCache<String, Bitmap> memoryCache;
+    // Whether the memory cache is created with frequency admission, guarded by the class
+    private static boolean memCacheAdmissionEnabled;
+    private static volatile BitmapPool bitmapPool;
+
+    // Full size of the memory cache, and when it was last trimmed or grown back
+    private static volatile int memCacheSize;
+    private static volatile long lastTrimTime;
+
+    /**
+     * Get the cache for the directory of the params, creating it if there is none yet. The params
+     * of the first request for a directory decide how its cache is set up, except for the memory
+     * budget, which grows to the largest size asked for by any cache.
+     */
+    static synchronized ImageCache getCache(Context context, ImageCache.ImageCacheParams cacheParams)
+    {
+        if (cacheParams.memoryCacheEnabled)
+        {
+            ensureMemoryCache(context, cacheParams);
+        }
+        if (cacheParams.bitmapPoolEnabled && Utils.hasHoneycomb() && bitmapPool == null)
+        {
+            bitmapPool = new BitmapPool(cacheParams.bitmapPoolSize);
+        }
+
+        // Keyed by name rather than path, finding the directory touches the disk
+        ImageCache cache = caches.get(cacheParams.uniqueName);
+        if (cache == null)
+        {
+            cache = new ImageCache(context, cacheParams);
+            caches.put(cacheParams.uniqueName, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Choose whether the shared memory cache only admits images asked for more often than the ones
+     * they would push out. Applies to every ImageCache, so it can only be chosen before the first
+     * one with a memory cache is created.
+     *
+     * @throws IllegalStateException if the memory cache exists already with the other setting
+     */
+    static synchronized void setMemoryCacheAdmissionEnabled(boolean enabled)
+    {
+        if (memoryCache != null && enabled != memCacheAdmissionEnabled)
+        {
+            throw new IllegalStateException(
+                    "Memory cache admission must be set before the first ImageCache is created");
+        }
+        memCacheAdmissionEnabled = enabled;
+    }
+
+    /**
+     * @return The memory cache shared by every ImageCache, keys must be prefixed per ImageCache.
+     *         Null if no ImageCache has a memory cache enabled.
+     */
+    static ConcurrentLruCache<String, Bitmap> getMemoryCache()
+    {
+        return memoryCache;
+    }
+
+    /**
+     * @return The bitmap pool shared by every ImageCache, or null if bitmaps are not reused.
+     */
+    static BitmapPool getBitmapPool()
+    {
+        return bitmapPool;
+    }
+
+    private static void ensureMemoryCache(Context context, ImageCache.ImageCacheParams cacheParams)
+    {
+        if (memoryCache == null)
+        {
+            memCacheSize = cacheParams.memCacheSize;
+            memoryCache = new ConcurrentLruCache<String, Bitmap>(memCacheSize,
+                    memCacheAdmissionEnabled)
+            {
+                /**
+                 * Measure item size in bytes rather than units which is more practical for a bitmap
+                 * cache
+                 */
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap)
+                {
+                    return Utils.getBitmapSize(bitmap);
+                }
+
+                /**
+                 * Offer bitmaps leaving the cache to the pool, so their memory can be reused rather
+                 * than collected
+                 */
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                                            Bitmap newValue)
+                {
+                    if (oldValue != newValue)
+                    {
+                        ImageCache.removeVariant(key);
+                        final BitmapPool pool = bitmapPool;
+                        if (pool != null)
+                        {
+                            pool.put(oldValue);
+                        }
+                    }
+                }
+            };
+            registerMemoryCallbacks(context);
+        }
+        else if (cacheParams.memCacheSize > memCacheSize)
+        {
+            // Unless it is trimmed right now, grow straight to the new budget
+            if (memoryCache.maxSize() == memCacheSize)
+            {
+                memoryCache.resize(cacheParams.memCacheSize);
+            }
+            memCacheSize = cacheParams.memCacheSize;
+        }
+    }
+
+    /**
+     * Listen for memory pressure, only possible from Ice Cream Sandwich on.
+     */
+    @SuppressLint("NewApi")
+    private static void registerMemoryCallbacks(Context context)
+    {
+        if (Utils.hasIceCreamSandwich())
+        {
+            context.getApplicationContext().registerComponentCallbacks(new MemoryCallbacks());
+        }
+    }
+
+    /**
+     * Shrink the caches in response to memory pressure, the harder the pressure the more is
+     * evicted. The least recently used bitmaps go first, and bitmaps which are on screen are always
+     * kept. The memory cache then stays at the smaller size, and grows back a step at a time once
+     * memory has been calm for a while.
+     *
+     * @param level A trim level from {@link ComponentCallbacks2}
+     */
+    static void trimMemory(int level)
+    {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == TRIM_MEMORY_RUNNING_CRITICAL)
+        {
+            trimMemoryCaches(0);
+        }
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == TRIM_MEMORY_RUNNING_LOW)
+        {
+            trimMemoryCaches(50);
+        }
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == TRIM_MEMORY_RUNNING_MODERATE)
+        {
+            trimMemoryCaches(75);
+        }
+    }
+
+    /**
+     * @param keepPercent How much of the full memory cache size to keep
+     */
+    private static void trimMemoryCaches(int keepPercent)
+    {
+        if (BuildConfig.DEBUG)
+        {
+            Log.d(TAG, "trimMemoryCaches - keeping " + keepPercent + "%");
+        }
+
+        final ConcurrentLruCache<String, Bitmap> cache = memoryCache;
+        if (cache != null)
+        {
+            final int keepSize = (int)((long)memCacheSize * keepPercent / 100);
+            cache.resize(Math.max(1, Math.min(keepSize, cache.maxSize())));
+            cache.trimToSize(keepSize);
+            lastTrimTime = SystemClock.uptimeMillis();
+        }
+
+        final BitmapPool pool = bitmapPool;
+        if (pool != null && keepPercent <= 50)
+        {
+            pool.clear();
+        }
+
+        final List<ImageCache> imageCaches;
+        synchronized (ImageCacheRegistry.class)
+        {
+            imageCaches = new ArrayList<ImageCache>(caches.values());
+        }
+        for (ImageCache imageCache : imageCaches)
+        {
+            imageCache.trimMemory(keepPercent);
+        }
+    }
+
+    /**
+     * Grow the memory cache back by a step, if it was trimmed and memory has been calm since.
+     */
+    static void regrowMemoryCache()
+    {
+        final ConcurrentLruCache<String, Bitmap> cache = memoryCache;
+        final int maxSize = cache.maxSize();
+        if (maxSize >= memCacheSize)
+        {
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        if (now - lastTrimTime >= REGROW_INTERVAL_MS)
+        {
+            lastTrimTime = now;
+            cache.resize(Math.min(memCacheSize, maxSize + memCacheSize / REGROW_STEPS));
+        }
+    }
+
+    /**
+     * Passes memory pressure on to the caches.
+     */
+    @SuppressLint("NewApi")
+    private static class MemoryCallbacks implements ComponentCallbacks2
+    {
+        @Override
+        public void onTrimMemory(int level)
+        {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory()
+        {
+            trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig)
+        {
+        }
+    }
+}
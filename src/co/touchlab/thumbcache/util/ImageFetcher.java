@@ -29,10 +29,10 @@ import co.touchlab.thumbcache.BuildConfig;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 
 /**
@@ -41,6 +41,10 @@ import java.net.URL;
 public class ImageFetcher extends ImageResizer {
     private static final String TAG = "ImageFetcher";
 
+    // How long to wait for another thread downloading the same URL before checking for
+    // cancellation again
+    private static final long DOWNLOAD_WAIT_MS = 250;
+
     /**
      * Initialize providing a target image width and height for the processing images.
      *
@@ -95,12 +99,15 @@ public class ImageFetcher extends ImageResizer {
             Log.d(TAG, "processBitmap - " + data);
         }
 
-        // Download a bitmap, write it to a file
-        final File f = downloadBitmap(mActivity, data, mImageCache.getDiskCache());
+        // Download a bitmap, write it to a file. Without a disk cache there is nowhere to put it.
+        final DiskLruCache cache = mImageCache != null ? mImageCache.getDiskCache() : null;
+        final File f = cache != null ? downloadBitmap(mActivity, data, cache, this) : null;
 
-        if (f != null) {
+        if (f != null && !isWorkCancelled()) {
             // Return a sampled down version
-            return decodeSampledBitmapFromFile(f.toString(), mImageWidth, mImageHeight);
+            final ImageSize size = getTargetSize();
+            return decodeSampledBitmapFromFile(
+                    f.toString(), size.width, size.height, createDecodeOptions(), getBitmapPool());
         }
 
         return null;
@@ -111,16 +118,101 @@ public class ImageFetcher extends ImageResizer {
         return processBitmap(String.valueOf(data));
     }
 
+    /**
+     * Images are cropped to fill the target size.
+     */
+    @Override
+    protected String getTransformation() {
+        return TRANSFORMATION_CROP;
+    }
+
+    /**
+     * Crop the image from a larger crop of it in memory, such as one shown at a bigger size
+     * elsewhere, rather than decoding the download again. Only crops with the same aspect ratio
+     * have the same framing, so only those are scaled from.
+     */
+    @Override
+    protected Bitmap getBitmapFromVariants(Object data) {
+        final ImageSize size = getTargetSize();
+        final int width = size.width;
+        final int height = size.height;
+        return ImageCache.scaleFromLargerVariant(String.valueOf(data), getTransformation(), width,
+                height, true, new ImageCache.VariantScaler() {
+                    @Override
+                    public Bitmap scale(Bitmap variant) {
+                        final Bitmap.Config config = variant.hasAlpha()
+                                ? Bitmap.Config.ARGB_8888 : getOpaqueDecodeConfig();
+                        return scaleCenterCrop(variant, height, width, config, getBitmapPool());
+                    }
+                });
+    }
+
+    /**
+     * Images which are not downloaded yet are fetched first, so the network work runs apart from
+     * the decode work. Images already on disk go straight to being decoded.
+     */
+    @Override
+    protected boolean requiresFetch(Object data) {
+        final DiskLruCache cache = mImageCache != null ? mImageCache.getDiskCache() : null;
+        return cache == null || !cache.containsKey(String.valueOf(data));
+    }
+
+    @Override
+    protected String getFetchHost(Object data) {
+        try {
+            return new URL(String.valueOf(data)).getHost();
+        } catch (final MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Download the image to the disk cache, the following call to
+     * {@link ImageFetcher#processBitmap(Object)} will then find it there.
+     *
+     * @param data The data to load the bitmap, in this case, a regular http URL
+     * @return true if the image was downloaded or already on disk, false if it failed or there
+     *         is no disk cache to download it to
+     */
+    @Override
+    protected boolean fetchBitmap(Object data) {
+        final DiskLruCache cache = mImageCache != null ? mImageCache.getDiskCache() : null;
+        if (cache == null) {
+            return false;
+        }
+        return downloadBitmap(mActivity, String.valueOf(data), cache, this) != null;
+    }
+
     /**
      * Download a bitmap from a URL, write it to a disk and return the File pointer. This
      * implementation uses a simple disk cache.
      *
      * @param context The context to use
      * @param urlString The URL to fetch
-     * @param cache The disk cache instance to get the download directory from.
-     * @return A File pointing to the fetched bitmap
+     * @param cache The disk cache instance to get the download directory from. May be null if the
+     *            disk cache could not be opened, nothing is downloaded then.
+     * @return A File pointing to the fetched bitmap, or null if it could not be fetched
      */
     public static File downloadBitmap(Context context, String urlString, DiskLruCache cache) {
+        if (cache == null) {
+            return null;
+        }
+        return downloadBitmap(context, urlString, cache, null);
+    }
+
+    /**
+     * Download a bitmap from a URL, write it to a disk and return the File pointer. The download is
+     * aborted, and the partial file deleted, as soon as the work on the calling thread is
+     * cancelled.
+     *
+     * @param context The context to use
+     * @param urlString The URL to fetch
+     * @param cache The disk cache instance to get the download directory from.
+     * @param worker The ImageWorker running the download, checked for cancellation. May be null.
+     * @return A File pointing to the fetched bitmap, or null if the download failed or was cancelled
+     */
+    static File downloadBitmap(Context context, String urlString, DiskLruCache cache,
+            ImageWorker worker) {
         final File cacheFile = new File(cache.createFilePath(urlString));
 
         if (cache.containsKey(urlString)) {
@@ -134,27 +226,60 @@ public class ImageFetcher extends ImageResizer {
             Log.d(TAG, "downloadBitmap - downloading - " + urlString);
         }
 
+        if (worker != null && worker.isWorkCancelled()) {
+            return null;
+        }
+
         Utils.disableConnectionReuseIfNecessary();
         HttpURLConnection urlConnection = null;
         BufferedOutputStream out = null;
+        boolean complete = false;
+
+        // Written to a temp file, the cache file only appears once the whole image is there
+        DiskLruCache.Editor editor;
+        while ((editor = cache.edit(urlString)) == null) {
+            if (cache.containsKey(urlString)) {
+                return cacheFile;
+            }
 
+            // Another thread is downloading it right now, use its download once it is done, or
+            // take over if it fails
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "downloadBitmap - waiting for download in progress - " + urlString);
+            }
+            if ((worker != null && worker.isWorkCancelled())
+                    || !cache.awaitEdit(urlString, DOWNLOAD_WAIT_MS)) {
+                return null;
+            }
+        }
         try {
             final URL url = new URL(urlString);
             urlConnection = (HttpURLConnection) url.openConnection();
             final InputStream in =
                     new BufferedInputStream(urlConnection.getInputStream(), Utils.IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(new FileOutputStream(cacheFile), Utils.IO_BUFFER_SIZE);
+            out = new BufferedOutputStream(editor.newOutputStream(), Utils.IO_BUFFER_SIZE);
 
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            final byte[] buffer = new byte[Utils.IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                if (worker != null && worker.isWorkCancelled()) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "downloadBitmap - cancelled - " + urlString);
+                    }
+                    return null;
+                }
+                out.write(buffer, 0, count);
             }
-            cache.putFromFetcher(urlString);
+            out.close();
+            out = null;
+            editor.commit();
+            complete = true;
             return cacheFile;
 
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
         } finally {
+            // Disconnecting drops the connection rather than draining the rest of the response
             if (urlConnection != null) {
                 urlConnection.disconnect();
             }
@@ -165,6 +290,9 @@ public class ImageFetcher extends ImageResizer {
                     Log.e(TAG, "Error in downloadBitmap - " + e);
                 }
             }
+            if (!complete) {
+                editor.abort();
+            }
         }
 
         return null;
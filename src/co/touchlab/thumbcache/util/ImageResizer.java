@@ -16,12 +16,14 @@
 
 package co.touchlab.thumbcache.util;
 
+import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
 import android.util.Log;
 
@@ -34,6 +36,14 @@ import co.touchlab.thumbcache.BuildConfig;
  */
 public class ImageResizer extends ImageWorker {
     private static final String TAG = "ImageWorker";
+
+    // The only format which can be relied on to never have alpha
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+    // Identify how a bitmap was transformed to fit the target size, as part of its cache key
+    protected static final String TRANSFORMATION_SAMPLE = "sample";
+    protected static final String TRANSFORMATION_CROP = "crop";
+
     protected int mImageWidth;
     protected int mImageHeight;
 
@@ -91,8 +101,9 @@ public class ImageResizer extends ImageWorker {
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "processBitmap - " + resId);
         }
+        final ImageSize size = getTargetSize();
         return decodeSampledBitmapFromResource(
-                mActivity.getResources(), resId, mImageWidth, mImageHeight);
+                mActivity.getResources(), resId, size.width, size.height, createDecodeOptions());
     }
 
     @Override
@@ -100,6 +111,68 @@ public class ImageResizer extends ImageWorker {
         return processBitmap(Integer.parseInt(String.valueOf(data)));
     }
 
+    /**
+     * Images without alpha are decoded to the opaque config of the image cache, see
+     * {@link ImageCache.ImageCacheParams#opaqueDecodeConfig}.
+     */
+    @Override
+    protected BitmapFactory.Options createDecodeOptions() {
+        final BitmapFactory.Options options = super.createDecodeOptions();
+        options.inPreferredConfig = getOpaqueDecodeConfig();
+        return options;
+    }
+
+    /**
+     * @return The config to decode images without alpha to, ARGB_8888 if there is no image cache.
+     */
+    protected Bitmap.Config getOpaqueDecodeConfig() {
+        return mImageCache != null
+                ? mImageCache.getOpaqueDecodeConfig() : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @return How bitmaps are transformed to fit the target size, resources are only sampled down
+     */
+    protected String getTransformation() {
+        return TRANSFORMATION_SAMPLE;
+    }
+
+    /**
+     * The target size can change while work is running, for example once a grid knows its column
+     * width, so work keeps to the size the image was requested at.
+     */
+    @Override
+    protected Object createWorkParams() {
+        return new ImageSize(mImageWidth, mImageHeight);
+    }
+
+    /**
+     * @return The size the work running on the calling thread was requested at, or the current
+     *         target size if the calling thread is not running any.
+     */
+    protected ImageSize getTargetSize() {
+        final Object params = getWorkParams();
+        return params instanceof ImageSize
+                ? (ImageSize) params : new ImageSize(mImageWidth, mImageHeight);
+    }
+
+    /**
+     * Every target size and transformation of the same data is cached separately.
+     */
+    @Override
+    protected String getCacheKey(Object data) {
+        final ImageSize size = getTargetSize();
+        return ImageCache.getVariantKey(
+                String.valueOf(data), getTransformation(), size.width, size.height);
+    }
+
+    @Override
+    protected void addBitmapToCache(Object data, Bitmap bitmap) {
+        final ImageSize size = getTargetSize();
+        mImageCache.addVariantToCache(
+                String.valueOf(data), getTransformation(), size.width, size.height, bitmap);
+    }
+
     /**
      * Decode and sample down a bitmap from resources to the requested width and height.
      *
@@ -112,14 +185,39 @@ public class ImageResizer extends ImageWorker {
      */
     public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId,
             int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromResource(
+                res, resId, reqWidth, reqHeight, new BitmapFactory.Options());
+    }
+
+    /**
+     * Decode and sample down a bitmap from resources to the requested width and height, using the
+     * given options. Decoding can be aborted by calling
+     * {@link BitmapFactory.Options#requestCancelDecode()} on them. If
+     * {@link BitmapFactory.Options#inPreferredConfig} is set, it is only used for images which
+     * cannot have alpha, any other image is decoded to ARGB_8888.
+     *
+     * @param res The resources object containing the image data
+     * @param resId The resource id of the image data
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param options The options to decode with
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height, or null if
+     *         decoding was cancelled
+     */
+    public static Bitmap decodeSampledBitmapFromResource(Resources res, int resId,
+            int reqWidth, int reqHeight, BitmapFactory.Options options) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeResource(res, resId, options);
+        if (options.mCancel) {
+            return null;
+        }
 
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        chooseConfig(options);
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
@@ -135,24 +233,100 @@ public class ImageResizer extends ImageWorker {
      * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
      *         that are equal to or greater than the requested width and height
      */
-    public static synchronized Bitmap decodeSampledBitmapFromFile(String filename,
+    public static Bitmap decodeSampledBitmapFromFile(String filename,
             int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromFile(
+                filename, reqWidth, reqHeight, new BitmapFactory.Options(), null);
+    }
+
+    /**
+     * Decode and sample down a bitmap from a file to the requested width and height, using the
+     * given options. Decoding can be aborted by calling
+     * {@link BitmapFactory.Options#requestCancelDecode()} on them. If
+     * {@link BitmapFactory.Options#inPreferredConfig} is set, it is only used for images which
+     * cannot have alpha, any other image is decoded to ARGB_8888.
+     *
+     * @param filename The full path of the file to decode
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param options The options to decode with
+     * @param pool A pool to reuse bitmaps from and return the intermediate bitmap to, may be null
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height, or null if
+     *         decoding failed or was cancelled
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String filename,
+            int reqWidth, int reqHeight, BitmapFactory.Options options, BitmapPool pool) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(filename, options);
+        if (options.mCancel) {
+            return null;
+        }
 
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        chooseConfig(options);
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
-        Bitmap bitmap = BitmapFactory.decodeFile(filename, options);
-        return scaleCenterCrop(bitmap, reqHeight, reqWidth);
+        Bitmap bitmap = decodeFile(filename, options, pool);
+        if (bitmap == null || options.mCancel) {
+            return null;
+        }
+        final Bitmap cropped = scaleCenterCrop(bitmap, reqHeight, reqWidth, bitmap.getConfig(), pool);
+
+        // The intermediate bitmap is no longer needed
+        if (pool != null) {
+            pool.put(bitmap);
+        }
+        return cropped;
     }
 
-    private static Bitmap scaleCenterCrop(Bitmap source, int newHeight, int newWidth)
+    /**
+     * Keep the preferred config of the options only if the image cannot have alpha, a JPEG in
+     * RGB_565 takes half the memory of one in ARGB_8888.
+     */
+    private static void chooseConfig(BitmapFactory.Options options) {
+        if (options.inPreferredConfig != null && !MIME_TYPE_JPEG.equals(options.outMimeType)) {
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        }
+    }
+
+    /**
+     * Decode a file, into a bitmap from the pool if there is one that fits.
+     */
+    @SuppressLint("NewApi")
+    private static Bitmap decodeFile(String filename, BitmapFactory.Options options,
+            BitmapPool pool) {
+        if (pool == null || !pool.addInBitmapOptions(options)) {
+            return BitmapFactory.decodeFile(filename, options);
+        }
+
+        final Bitmap reusable = options.inBitmap;
+        try {
+            final Bitmap bitmap = BitmapFactory.decodeFile(filename, options);
+            if (bitmap == null) {
+                pool.put(reusable);
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap did not fit after all, decode into a new one
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "decodeFile - could not reuse bitmap - " + e);
+            }
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(filename, options);
+        }
+    }
+
+    /**
+     * Scale and crop a bitmap to fill the given size, in the given config. If a pool is given the
+     * result is drawn into a pooled bitmap where possible. The source is left untouched.
+     */
+    protected static Bitmap scaleCenterCrop(Bitmap source, int newHeight, int newWidth,
+            Bitmap.Config config, BitmapPool pool)
     {
         int sourceWidth = source.getWidth();
         int sourceHeight = source.getHeight();
@@ -169,16 +343,33 @@ public class ImageResizer extends ImageWorker {
         float dx = (newWidth - scaledWidth) / 2;
         float dy = (newHeight - scaledHeight) / 2;
 
-        Bitmap dest = Bitmap.createBitmap(newWidth, newHeight, source.getConfig());
+        Bitmap dest = pool != null ? pool.get(newWidth, newHeight, config) : null;
+        if (dest != null) {
+            dest.eraseColor(Color.TRANSPARENT);
+        } else {
+            dest = Bitmap.createBitmap(newWidth, newHeight, config);
+        }
         Canvas canvas = new Canvas(dest);
         Matrix matrix = new Matrix();
         matrix.postScale(scale, scale);
         matrix.postTranslate(dx, dy);
         canvas.drawBitmap(source, matrix, null);
-
         return dest;
     }
 
+    /**
+     * A target width and height.
+     */
+    protected static final class ImageSize {
+        public final int width;
+        public final int height;
+
+        public ImageSize(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
     /**
      * Calculate an inSampleSize for use in a {@link BitmapFactory.Options} object when decoding
      * bitmaps using the decode* methods from {@link BitmapFactory}. This implementation calculates
@@ -26,10 +26,19 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.os.AsyncTask;
 import android.util.Log;
+import android.widget.AdapterView;
 import android.widget.ImageView;
 import co.touchlab.thumbcache.BuildConfig;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading a bitmap to an
@@ -44,6 +53,23 @@ public abstract class ImageWorker
     private Bitmap mLoadingBitmap;
     private boolean mFadeInBitmap = true;
     private volatile boolean mExitTasksEarly = false;
+    private boolean mPauseWork = false;
+
+    // The work being run by the current thread, so subclasses can check if it is still wanted
+    private final ThreadLocal<BitmapWorkerRunnable> mCurrentWork = new ThreadLocal<BitmapWorkerRunnable>();
+
+    // The bitmap last set into each ImageView by this worker, only touched from the UI thread
+    private final Map<ImageView, DisplayedBitmap> mDisplayedBitmaps =
+            new WeakHashMap<ImageView, DisplayedBitmap>();
+    // Bindings whose ImageView was collected while it still displayed a bitmap
+    private final ReferenceQueue<ImageView> mCollectedImageViews = new ReferenceQueue<ImageView>();
+
+    // Tasks created while work was paused, only touched from the UI thread
+    private final List<BitmapWorkerTask> mPausedTasks = new ArrayList<BitmapWorkerTask>();
+
+    // Work currently loading, by key, so concurrent requests for the same data can share it
+    private final Map<String, BitmapWorkerRunnable> mInFlightWork =
+            new HashMap<String, BitmapWorkerRunnable>();
 
     protected Activity mActivity;
     protected ImageWorkerAdapter mImageWorkerAdapter;
@@ -67,24 +93,52 @@ public abstract class ImageWorker
     public void loadImage(Object data, ImageView imageView)
     {
         Bitmap bitmap = null;
+        final String key = getCacheKey(data);
 
         if (mImageCache != null)
         {
-            bitmap = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+            bitmap = mImageCache.getBitmapFromMemCache(key);
+            if (bitmap != null)
+            {
+                // Evicted between the lookup and the retain, the bitmap may already have been
+                // pooled and decoded into. Once retained and pinned it can no longer be either.
+                retainBitmap(bitmap);
+                if (!mImageCache.pinBitmap(key, bitmap))
+                {
+                    releaseBitmap(bitmap);
+                    bitmap = null;
+                }
+            }
         }
 
         if (bitmap != null)
         {
             // Bitmap found in memory cache
+            setDisplayedBitmap(imageView, key, bitmap, true);
             imageView.setImageBitmap(bitmap);
         }
-        else if (cancelPotentialWork(data, imageView))
+        else if (cancelPotentialWork(key, imageView))
         {
-            final BitmapWorkerTask task = makeTask(imageView, data);
-            final AsyncDrawable asyncDrawable =
-                    new AsyncDrawable(mActivity.getResources(), mLoadingBitmap, task);
+            setDisplayedBitmap(imageView, key, null, false);
+            final BitmapWorkerTask task =
+                    new BitmapWorkerTask(imageView, data, key, createWorkParams());
+
+            // Show a blurred preview of the image while it loads, if there is one
+            final Bitmap preview =
+                    mImageCache != null ? mImageCache.getPreviewFromCache(String.valueOf(data)) : null;
+            final AsyncDrawable asyncDrawable = new AsyncDrawable(mActivity.getResources(),
+                    preview != null ? preview : mLoadingBitmap, task);
             imageView.setImageDrawable(asyncDrawable);
-            NetworkThreadPool.submitTask(task);
+
+            if (mPauseWork)
+            {
+                // Hold the task back until work is resumed, it may well be scrolled away by then
+                mPausedTasks.add(task);
+            }
+            else
+            {
+                attachTask(task);
+            }
         }
     }
 
@@ -172,6 +226,108 @@ public abstract class ImageWorker
         mExitTasksEarly = exitTasksEarly;
     }
 
+    /**
+     * Pause or resume starting new work. While paused, images are still set straight away if they
+     * are found in the memory cache, but any other request is held back. On resume, only the held
+     * requests whose ImageView is still bound to them are started. This is meant to be driven by
+     * the scroll state of a list, see {@link PauseOnScrollListener}. Must be called from the UI
+     * thread.
+     *
+     * @param pauseWork
+     */
+    public void setPauseWork(boolean pauseWork)
+    {
+        if (mPauseWork == pauseWork)
+        {
+            return;
+        }
+        mPauseWork = pauseWork;
+
+        if (!pauseWork)
+        {
+            final List<BitmapWorkerTask> pausedTasks = new ArrayList<BitmapWorkerTask>(mPausedTasks);
+            mPausedTasks.clear();
+            for (BitmapWorkerTask task : pausedTasks)
+            {
+                if (task.getAttachedImageView() != null)
+                {
+                    attachTask(task);
+                }
+            }
+        }
+    }
+
+    public boolean isPauseWork()
+    {
+        return mPauseWork;
+    }
+
+    /**
+     * Re-rank the work waiting to run from what is currently visible in the given list. Work for
+     * visible rows runs first, starting from the edge new rows are scrolling in from. Positions
+     * are only known for ImageViews the list still shows, so all other work keeps its priority and
+     * falls behind, and work which no ImageView is bound to anymore is dropped. Must be called from
+     * the UI thread.
+     *
+     * @param listView         The list the ImageViews are shown in
+     * @param firstVisible     The position of the first visible row
+     * @param lastVisible      The position of the last visible row
+     * @param scrollingForward true if the list is scrolling towards higher positions
+     */
+    public void reprioritize(AdapterView<?> listView, int firstVisible, int lastVisible,
+                             boolean scrollingForward)
+    {
+        final List<BitmapWorkerRunnable> work;
+        synchronized (mInFlightWork)
+        {
+            work = new ArrayList<BitmapWorkerRunnable>(mInFlightWork.values());
+        }
+
+        final int visibleCount = lastVisible - firstVisible + 1;
+        final List<RankedTask> rankedTasks = new ArrayList<RankedTask>(work.size());
+
+        for (BitmapWorkerRunnable runnable : work)
+        {
+            final List<ImageView> imageViews = runnable.getAttachedImageViews();
+            if (imageViews.isEmpty())
+            {
+                runnable.cancel(false);
+                continue;
+            }
+
+            int bestRank = Integer.MAX_VALUE;
+            for (ImageView imageView : imageViews)
+            {
+                final int position = listView.getPositionForView(imageView);
+                if (position == AdapterView.INVALID_POSITION)
+                {
+                    continue;
+                }
+
+                // How far the row is from the edge rows scroll in from
+                final int distance = scrollingForward ? lastVisible - position : position - firstVisible;
+                if (distance >= 0 && distance < visibleCount)
+                {
+                    bestRank = Math.min(bestRank, distance);
+                }
+            }
+
+            final LIFOTask task = runnable.stageTask;
+            if (bestRank != Integer.MAX_VALUE && task != null)
+            {
+                rankedTasks.add(new RankedTask(task, bestRank));
+            }
+        }
+
+        Collections.sort(rankedTasks);
+        final List<LIFOTask> tasks = new ArrayList<LIFOTask>(rankedTasks.size());
+        for (RankedTask rankedTask : rankedTasks)
+        {
+            tasks.add(rankedTask.task);
+        }
+        NetworkThreadPool.reprioritize(tasks);
+    }
+
     /**
      * Set the simple adapter which holds the backing data.
      *
@@ -202,6 +358,241 @@ public abstract class ImageWorker
      */
     protected abstract Bitmap processBitmap(Object data);
 
+    /**
+     * Subclasses which produce different bitmaps from the same data, for example at different
+     * sizes, should override this to include whatever makes the result differ in the key.
+     *
+     * @param data The data to identify which image to process
+     * @return The key the processed bitmap is cached under, and work for it is shared by
+     */
+    protected String getCacheKey(Object data)
+    {
+        return String.valueOf(data);
+    }
+
+    /**
+     * Subclasses whose processing depends on settings which can change while work is running, such
+     * as the target size, should override this to take a snapshot of them. It is taken on the UI
+     * thread when the image is requested, and the work for that request reads it back from
+     * {@link ImageWorker#getWorkParams()}, so it is cached under the key it was requested with.
+     *
+     * @return An immutable snapshot of the settings, or null if there are none
+     */
+    protected Object createWorkParams()
+    {
+        return null;
+    }
+
+    /**
+     * @return The snapshot from {@link ImageWorker#createWorkParams()} taken for the work running
+     *         on the calling thread, or null if the calling thread is not running any
+     */
+    protected final Object getWorkParams()
+    {
+        final BitmapWorkerRunnable runnable = mCurrentWork.get();
+        return runnable != null ? runnable.params : null;
+    }
+
+    /**
+     * Add a processed bitmap to the image cache, under the key it was requested with.
+     *
+     * @param data   The data the bitmap was processed from
+     * @param bitmap The processed bitmap
+     */
+    protected void addBitmapToCache(Object data, Bitmap bitmap)
+    {
+        final BitmapWorkerRunnable runnable = mCurrentWork.get();
+        mImageCache.addBitmapToCache(runnable != null ? runnable.key : getCacheKey(data), bitmap);
+    }
+
+    /**
+     * Subclasses which cache several variants of the same image can override this to produce the
+     * bitmap from one already in memory, which is much cheaper than reading it from disk or
+     * processing it again. This will be executed in a background thread.
+     *
+     * @param data The data to identify which image to process
+     * @return The bitmap, or null if it cannot be produced this way
+     */
+    protected Bitmap getBitmapFromVariants(Object data)
+    {
+        return null;
+    }
+
+    /**
+     * @return The pool of the image cache to reuse bitmaps from, or null if there is none.
+     */
+    protected BitmapPool getBitmapPool()
+    {
+        return mImageCache != null ? mImageCache.getBitmapPool() : null;
+    }
+
+    /**
+     * Note that a bitmap is about to be displayed, so the bitmap pool will not hand it out for
+     * reuse. Every call must be balanced by a call to {@link ImageWorker#releaseBitmap(Bitmap)}.
+     */
+    private void retainBitmap(Bitmap bitmap)
+    {
+        final BitmapPool pool = getBitmapPool();
+        if (pool != null)
+        {
+            pool.retain(bitmap);
+        }
+    }
+
+    private void releaseBitmap(Bitmap bitmap)
+    {
+        final BitmapPool pool = getBitmapPool();
+        if (pool != null)
+        {
+            pool.release(bitmap);
+        }
+    }
+
+    /**
+     * Record the bitmap now displayed by an ImageView, which must already have been retained, and
+     * pinned in the memory cache if it could be, so it stays there while on screen. The bitmap it
+     * displayed before is unpinned and released. Everything still recorded is released by
+     * {@link ImageWorker#unbindAll()}. Must be called from the UI thread.
+     *
+     * @param imageView The ImageView
+     * @param key       The key the bitmap was loaded for
+     * @param bitmap    The retained bitmap it now displays, or null if it displays none of ours
+     * @param pinned    true if the bitmap is pinned in the memory cache under the key
+     */
+    private void setDisplayedBitmap(ImageView imageView, String key, Bitmap bitmap, boolean pinned)
+    {
+        releaseCollectedBindings();
+
+        DisplayedBitmap previous;
+        if (bitmap != null)
+        {
+            previous = mDisplayedBitmaps.put(imageView, new DisplayedBitmap(imageView,
+                    mCollectedImageViews, pinned ? mImageCache : null, key, bitmap));
+        }
+        else
+        {
+            previous = mDisplayedBitmaps.remove(imageView);
+        }
+
+        if (previous != null)
+        {
+            previous.clear();
+            unbind(previous);
+        }
+    }
+
+    /**
+     * Unpin and release every bitmap this worker has set into an ImageView. The memory cache lives
+     * as long as the process, so this must be called once the ImageViews are done with, typically
+     * from onDestroy of the activity or fragment owning the worker, or the bitmaps stay pinned.
+     * ImageViews which are collected before then are only released the next time a bitmap is set.
+     * Must be called from the UI thread.
+     */
+    public void unbindAll()
+    {
+        releaseCollectedBindings();
+
+        final List<DisplayedBitmap> displayed = new ArrayList<DisplayedBitmap>(mDisplayedBitmaps.values());
+        mDisplayedBitmaps.clear();
+        for (DisplayedBitmap displayedBitmap : displayed)
+        {
+            displayedBitmap.clear();
+            unbind(displayedBitmap);
+        }
+        mPausedTasks.clear();
+    }
+
+    /**
+     * Unpin and release the bitmaps of ImageViews which were collected while still displaying them.
+     */
+    private void releaseCollectedBindings()
+    {
+        Reference<? extends ImageView> collected;
+        while ((collected = mCollectedImageViews.poll()) != null)
+        {
+            unbind((DisplayedBitmap)collected);
+        }
+    }
+
+    private void unbind(DisplayedBitmap displayed)
+    {
+        if (displayed.cache != null)
+        {
+            displayed.cache.unpinBitmap(displayed.key, displayed.bitmap);
+        }
+        releaseBitmap(displayed.bitmap);
+    }
+
+    /**
+     * Long running work in {@link ImageWorker#fetchBitmap(Object)} or
+     * {@link ImageWorker#processBitmap(Object)} should check this regularly and give up as soon as
+     * it returns true, so the thread can move on to work that is still needed.
+     *
+     * @return true if the work running on the calling thread is no longer wanted by any ImageView
+     */
+    protected boolean isWorkCancelled()
+    {
+        final BitmapWorkerRunnable runnable = mCurrentWork.get();
+        return runnable != null && !runnable.shouldContinue();
+    }
+
+    /**
+     * Create options for decoding a bitmap in {@link ImageWorker#processBitmap(Object)}. If the work
+     * running on the calling thread is cancelled, decoding with these options is aborted.
+     *
+     * @return A new options object
+     */
+    protected BitmapFactory.Options createDecodeOptions()
+    {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        final BitmapWorkerRunnable runnable = mCurrentWork.get();
+        if (runnable != null)
+        {
+            runnable.setDecodeOptions(options);
+        }
+        return options;
+    }
+
+    /**
+     * Subclasses should override this to return true if the source for data has to be fetched
+     * from somewhere slow, such as the network, before {@link ImageWorker#processBitmap(Object)}
+     * can run. The fetch will then happen on the network executor, keeping the decode executor
+     * free for work that is ready to be processed.
+     *
+     * @param data The data to identify which image to process
+     * @return true if {@link ImageWorker#fetchBitmap(Object)} should be called first
+     */
+    protected boolean requiresFetch(Object data)
+    {
+        return false;
+    }
+
+    /**
+     * Subclasses which fetch from a network should override this to return the host data will be
+     * fetched from, so requests can be limited per host and one slow host cannot take up every
+     * network thread.
+     *
+     * @param data The data to identify which image to fetch
+     * @return The host name, or null if fetches for this data should not be limited by host
+     */
+    protected String getFetchHost(Object data)
+    {
+        return null;
+    }
+
+    /**
+     * Subclasses which return true from {@link ImageWorker#requiresFetch(Object)} should override
+     * this to pull down the source data, for example to a disk cache. This will be executed in a
+     * background thread and be long running.
+     *
+     * @param data The data to identify which image to fetch
+     * @return true if the source is now available to {@link ImageWorker#processBitmap(Object)}
+     */
+    protected boolean fetchBitmap(Object data)
+    {
+        return true;
+    }
+
     public static void cancelWork(ImageView imageView)
     {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
@@ -219,22 +610,29 @@ public abstract class ImageWorker
     /**
      * Returns true if the current work has been canceled or if there was no work in
      * progress on this image view.
-     * Returns false if the work in progress deals with the same data. The work is not
-     * stopped in that case.
+     * Returns false if the work in progress is for the same key, so the same data at the same
+     * size. The work is not stopped in that case.
+     *
+     * @param key       The key from {@link ImageWorker#getCacheKey(Object)} of the new request
+     * @param imageView The ImageView the request is for
      */
-    public static boolean cancelPotentialWork(Object data, ImageView imageView)
+    public static boolean cancelPotentialWork(String key, ImageView imageView)
     {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
 
         if (bitmapWorkerTask != null)
         {
-            final Object bitmapData = bitmapWorkerTask.data;
-            if (bitmapData == null || !bitmapData.equals(data))
+            if (bitmapWorkerTask.isCancelled())
+            {
+                // The work was dropped, for example because its queue was full, so start over
+                return true;
+            }
+            else if (!bitmapWorkerTask.isSameKey(key))
             {
                 bitmapWorkerTask.cancel(false); //we will allow currently running tasks to continue
                 if (BuildConfig.DEBUG)
                 {
-                    Log.d(TAG, "cancelPotentialWork - cancelled work for " + data);
+                    Log.d(TAG, "cancelPotentialWork - cancelled work for " + bitmapWorkerTask.key);
                 }
             }
             else
@@ -265,73 +663,304 @@ public abstract class ImageWorker
         return null;
     }
 
-    public static boolean isValidData(Object data, ImageView imageView)
+    /**
+     * @return true if the ImageView is still waiting on work for the key.
+     */
+    public static boolean isValidKey(String key, ImageView imageView)
     {
         BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-        return bitmapWorkerTask != null && bitmapWorkerTask.isSameData(data);
+        return bitmapWorkerTask != null && bitmapWorkerTask.isSameKey(key);
     }
 
     /**
-     * Static creator method for setting up a LIFOTask with a Runnable inside.
-     * @param imageView The ImageView to use when displaying the loaded image.
-     * @param data The URL to load.
-     * @return A fully baked LIFOTask.
+     * Attach a task to the work already in flight for the same data, or start new work if there is
+     * none, so that concurrent requests for one image only load it once.
+     * @param task The task bound to the ImageView that should receive the loaded image.
      */
-    private BitmapWorkerTask makeTask(ImageView imageView, Object data)
+    private void attachTask(BitmapWorkerTask task)
     {
-        BitmapWorkerRunnable runnable = new BitmapWorkerRunnable(imageView, data);
-        BitmapWorkerTask task = new BitmapWorkerTask(runnable, data);
-        runnable.setParentTask(task);
-        return task;
+        final String key = task.key;
+        BitmapWorkerRunnable runnable;
+
+        synchronized (mInFlightWork)
+        {
+            runnable = mInFlightWork.get(key);
+            if (runnable != null && runnable.attach(task))
+            {
+                if (BuildConfig.DEBUG)
+                {
+                    Log.d(TAG, "attachTask - joined work in flight for " + key);
+                }
+                return;
+            }
+
+            runnable = new BitmapWorkerRunnable(key, task.data, task.params);
+            runnable.attach(task);
+            mInFlightWork.put(key, runnable);
+        }
+
+        runnable.start();
+    }
+
+    private void removeInFlightWork(BitmapWorkerRunnable runnable)
+    {
+        synchronized (mInFlightWork)
+        {
+            if (mInFlightWork.get(runnable.key) == runnable)
+            {
+                mInFlightWork.remove(runnable.key);
+            }
+        }
     }
 
     /**
-     * A FutureTask that is used for the underlying priority queue for implementing LIFO image loading.
+     * A single request to load data into an ImageView. Several of these may share the same
+     * {@link BitmapWorkerRunnable}, cancelling one only stops the shared work once no other task is
+     * still waiting on it.
      */
-    private class BitmapWorkerTask extends LIFOTask
+    private class BitmapWorkerTask
     {
         Object data;
+        // Key and settings captured when the image was requested
+        private final String key;
+        private final Object params;
+        private final WeakReference<ImageView> imageViewReference;
+        private volatile boolean cancelled = false;
+        private BitmapWorkerRunnable runnable;
 
-        private BitmapWorkerTask(BitmapWorkerRunnable runnable, Object data)
+        private BitmapWorkerTask(ImageView imageView, Object data, String key, Object params)
         {
-            super(runnable);
+            imageViewReference = new WeakReference<ImageView>(imageView);
             this.data = data;
+            this.key = key;
+            this.params = params;
+        }
+
+        public boolean isSameKey(String key)
+        {
+            return this.key.equals(key);
         }
 
-        public boolean isSameData(Object data)
+        public void cancel(boolean mayInterruptIfRunning)
+        {
+            cancelled = true;
+            if (runnable != null)
+            {
+                runnable.detach(this, mayInterruptIfRunning);
+            }
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        /**
+         * Returns the ImageView associated with this task as long as the ImageView's task still
+         * points to this task as well. Returns null otherwise.
+         */
+        private ImageView getAttachedImageView()
         {
-            return this.data.equals(data);
+            final ImageView imageView = imageViewReference.get();
+
+            if (!cancelled && getBitmapWorkerTask(imageView) == this)
+            {
+                return imageView;
+            }
+
+            return null;
         }
     }
 
     /**
-     * The actual Runnable that will process the image.
+     * The actual Runnable that will process the image, on behalf of every {@link BitmapWorkerTask}
+     * attached to it. The same runnable is run once per stage: a disk cache lookup, an optional
+     * fetch of the source and finally the processing of the bitmap. Each stage is run on its own
+     * executor from {@link NetworkThreadPool}, with the priority of the first stage.
      */
     private class BitmapWorkerRunnable implements Runnable
     {
-        private Object data;
-        private final WeakReference<ImageView> imageViewReference;
-        private BitmapWorkerTask parentTask;
+        private static final int STAGE_DISK = 0;
+        private static final int STAGE_FETCH = 1;
+        private static final int STAGE_PROCESS = 2;
+
+        private final String key;
+        private final Object data;
+        private final Object params;
+        private final List<BitmapWorkerTask> tasks = new ArrayList<BitmapWorkerTask>();
+        private boolean finished = false;
+        private volatile boolean cancelled = false;
+        private volatile LIFOTask stageTask;
+        private volatile BitmapFactory.Options decodeOptions;
+        private int stage = STAGE_DISK;
 
-        private BitmapWorkerRunnable(ImageView imageView, Object data)
+        private BitmapWorkerRunnable(String key, Object data, Object params)
         {
-            imageViewReference = new WeakReference<ImageView>(imageView);
+            this.key = key;
             this.data = data;
+            this.params = params;
         }
 
-        public BitmapWorkerTask getParentTask()
+        /**
+         * @return true if the task was attached, false if this work has already finished or been
+         *         cancelled and can no longer deliver to new tasks.
+         */
+        private synchronized boolean attach(BitmapWorkerTask task)
         {
-            return parentTask;
+            if (finished || cancelled)
+            {
+                return false;
+            }
+            tasks.add(task);
+            task.runnable = this;
+            return true;
+        }
+
+        private void detach(BitmapWorkerTask task, boolean mayInterruptIfRunning)
+        {
+            synchronized (this)
+            {
+                tasks.remove(task);
+                if (!tasks.isEmpty())
+                {
+                    return;
+                }
+            }
+
+            // Nobody is waiting on this work anymore
+            cancel(mayInterruptIfRunning);
         }
 
-        public void setParentTask(BitmapWorkerTask parentTask)
+        private void cancel(boolean mayInterruptIfRunning)
         {
-            this.parentTask = parentTask;
+            synchronized (this)
+            {
+                if (finished)
+                {
+                    return;
+                }
+                cancelled = true;
+            }
+
+            removeInFlightWork(this);
+            final LIFOTask current = stageTask;
+            if (current != null)
+            {
+                current.cancel(mayInterruptIfRunning);
+            }
+            final BitmapFactory.Options options = decodeOptions;
+            if (options != null)
+            {
+                options.requestCancelDecode();
+            }
+        }
+
+        private void setDecodeOptions(BitmapFactory.Options options)
+        {
+            decodeOptions = options;
+            if (cancelled)
+            {
+                options.requestCancelDecode();
+            }
+        }
+
+        /**
+         * Called when a stage task was cancelled. Unless this work cancelled it, it was rejected
+         * by a full queue, in which case the work is given up.
+         */
+        private void onStageCancelled(LIFOTask task)
+        {
+            if (giveUp(task) && BuildConfig.DEBUG)
+            {
+                Log.d(TAG, "onStageCancelled - work rejected for " + key);
+            }
+        }
+
+        /**
+         * Called when a stage threw, for example running out of memory while decoding. Unless it
+         * had finished already, the work is given up.
+         */
+        private void onStageFailed(LIFOTask task, Throwable cause)
+        {
+            Log.e(TAG, "onStageFailed - work failed for " + key, cause);
+            giveUp(task);
+        }
+
+        /**
+         * Stop this work if the task is its current stage, and it has not finished yet. The
+         * attached tasks are cancelled as well, so that binding the same data again starts new
+         * work rather than joining this one.
+         *
+         * @return true if the work was given up
+         */
+        private boolean giveUp(LIFOTask task)
+        {
+            final List<BitmapWorkerTask> abandoned;
+            synchronized (this)
+            {
+                if (finished || cancelled || task != stageTask)
+                {
+                    return false;
+                }
+                cancelled = true;
+                abandoned = new ArrayList<BitmapWorkerTask>(tasks);
+                tasks.clear();
+            }
+
+            removeInFlightWork(this);
+            for (BitmapWorkerTask abandonedTask : abandoned)
+            {
+                abandonedTask.cancelled = true;
+            }
+            return true;
+        }
+
+        private void start()
+        {
+            final LIFOTask task = new StageTask(this, LIFOTask.nextPriority());
+            stageTask = task;
+            NetworkThreadPool.submitDiskTask(task);
         }
 
         private boolean isCancelled()
         {
-            return parentTask == null || parentTask.isCancelled();
+            return cancelled;
+        }
+
+        /**
+         * Returns true if this work has not been cancelled by another thread, at least one of the
+         * ImageViews that were originally bound to it is still bound back to it and our "exit
+         * early" flag is not set.
+         */
+        private boolean shouldContinue()
+        {
+            return !isCancelled() && hasAttachedImageView() && !mExitTasksEarly;
+        }
+
+        private synchronized boolean hasAttachedImageView()
+        {
+            for (BitmapWorkerTask task : tasks)
+            {
+                if (task.getAttachedImageView() != null)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized List<ImageView> getAttachedImageViews()
+        {
+            final List<ImageView> imageViews = new ArrayList<ImageView>(tasks.size());
+            for (BitmapWorkerTask task : tasks)
+            {
+                final ImageView imageView = task.getAttachedImageView();
+                if (imageView != null)
+                {
+                    imageViews.add(imageView);
+                }
+            }
+            return imageViews;
         }
 
         /**
@@ -340,70 +969,220 @@ public abstract class ImageWorker
         @Override
         public void run()
         {
-            final String dataString = String.valueOf(data);
+            mCurrentWork.set(this);
+            try
+            {
+                switch (stage)
+                {
+                    case STAGE_DISK:
+                        runDiskStage();
+                        break;
+                    case STAGE_FETCH:
+                        runFetchStage();
+                        break;
+                    default:
+                        runProcessStage();
+                        break;
+                }
+            }
+            finally
+            {
+                mCurrentWork.remove();
+                decodeOptions = null;
+            }
+        }
+
+        private void runDiskStage()
+        {
             Bitmap bitmap = null;
 
-            // If the image cache is available and this task has not been cancelled by another
-            // thread and the ImageView that was originally bound to this task is still bound back
-            // to this task and our "exit early" flag is not set then try and fetch the bitmap from
-            // the cache
-            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly)
+            // If the image cache is available and we should continue, try and produce the bitmap
+            // from another variant in memory, then from the disk cache
+            if (mImageCache != null && shouldContinue())
+            {
+                bitmap = getBitmapFromVariants(data);
+                if (bitmap == null && shouldContinue())
+                {
+                    bitmap = mImageCache.getBitmapFromDiskCache(key);
+                }
+            }
+
+            if (bitmap == null && shouldContinue())
+            {
+                // Not cached, hand off to the next stage rather than holding up other disk lookups
+                handOff(requiresFetch(data) ? STAGE_FETCH : STAGE_PROCESS);
+            }
+            else
+            {
+                onBitmapLoaded(bitmap);
+            }
+        }
+
+        private void runFetchStage()
+        {
+            if (shouldContinue() && fetchBitmap(data))
             {
-                bitmap = mImageCache.getBitmapFromDiskCache(dataString);
+                handOff(STAGE_PROCESS);
             }
+            else
+            {
+                onBitmapLoaded(null);
+            }
+        }
+
+        private void runProcessStage()
+        {
+            Bitmap bitmap = null;
 
-            // If the bitmap was not found in the cache and this task has not been cancelled by
-            // another thread and the ImageView that was originally bound to this task is still
-            // bound back to this task and our "exit early" flag is not set, then call the main
-            // process method (as implemented by a subclass)
-            if (bitmap == null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly)
+            // If we should still continue, then call the main process method (as implemented by a
+            // subclass)
+            if (shouldContinue())
             {
                 bitmap = processBitmap(data);
             }
 
+            onBitmapLoaded(bitmap);
+        }
+
+        /**
+         * Queue this runnable again, on the executor for the given stage. The new task keeps the
+         * priority of the original one.
+         */
+        private void handOff(int nextStage)
+        {
+            stage = nextStage;
+            final LIFOTask task = new StageTask(this, stageTask.getPriority());
+            stageTask = task;
+
+            if (nextStage == STAGE_FETCH)
+            {
+                NetworkThreadPool.submitTask(task, getFetchHost(data));
+            }
+            else
+            {
+                NetworkThreadPool.submitDecodeTask(task);
+            }
+        }
+
+        /**
+         * Final step of the work, whether or not a bitmap was loaded. Hands the bitmap to every
+         * attached task that still wants it.
+         */
+        private void onBitmapLoaded(Bitmap bitmap)
+        {
+            if (bitmap == null)
+            {
+                deliver(null);
+                return;
+            }
+
+            // Hold on to the bitmap while it is handed out, so it cannot be evicted straight into
+            // the bitmap pool and reused before it is displayed
+            retainBitmap(bitmap);
+            try
+            {
+                deliver(bitmap);
+            }
+            finally
+            {
+                releaseBitmap(bitmap);
+            }
+        }
+
+        private void deliver(Bitmap bitmap)
+        {
             // If the bitmap was processed and the image cache is available, then add the processed
             // bitmap to the cache for future use. Note we don't check if the task was cancelled
             // here, if it was, and the thread is still running, we may as well add the processed
             // bitmap to our cache as it might be used again in the future
             if (bitmap != null && mImageCache != null)
             {
-                mImageCache.addBitmapToCache(dataString, bitmap);
+                addBitmapToCache(data, bitmap);
+                // One preview serves every variant of the image
+                mImageCache.addPreviewToCache(String.valueOf(data), bitmap);
             }
 
-            if (isCancelled() || mExitTasksEarly)
+            final List<BitmapWorkerTask> targets;
+            synchronized (this)
             {
-                bitmap = null;
+                finished = true;
+                targets = new ArrayList<BitmapWorkerTask>(tasks);
+                tasks.clear();
             }
+            removeInFlightWork(this);
 
-            if (bitmap != null)
+            if (bitmap == null || isCancelled() || mExitTasksEarly)
+            {
+                return;
+            }
+
+            for (BitmapWorkerTask task : targets)
             {
+                final ImageView imageView = task.getAttachedImageView();
+                if (imageView == null)
+                {
+                    continue;
+                }
+
                 BitmapSetter runnable;
                 if (mFadeInBitmap)
-                    runnable = new FadeInBitmapSetter(data, bitmap, getAttachedImageView(), mLoadingBitmap);
+                    runnable = new FadeInBitmapSetter(key, bitmap, imageView, mLoadingBitmap);
                 else
-                    runnable = new BitmapSetter(data, bitmap, getAttachedImageView());
+                    runnable = new BitmapSetter(key, bitmap, imageView);
 
-                mActivity.runOnUiThread(runnable);
+                // Released by the setter if the bitmap is not displayed after all
+                retainBitmap(bitmap);
+                FrameBatchedExecutor.getInstance().execute(runnable);
             }
         }
+    }
 
-        /**
-         * Returns the ImageView associated with this task as long as the ImageView's task still
-         * points to this task as well. Returns null otherwise.
-         */
-        private ImageView getAttachedImageView()
+    /**
+     * Runs one stage of a {@link BitmapWorkerRunnable}, letting it know if the task gets cancelled
+     * or the stage throws.
+     */
+    private static class StageTask extends LIFOTask
+    {
+        private final BitmapWorkerRunnable runnable;
+
+        private StageTask(BitmapWorkerRunnable runnable, long priority)
         {
-            final ImageView imageView = imageViewReference.get();
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
+            super(runnable, priority);
+            this.runnable = runnable;
+        }
 
-            if (getParentTask() == bitmapWorkerTask)
+        @Override
+        protected void done()
+        {
+            super.done();
+            if (isCancelled())
             {
-                return imageView;
+                runnable.onStageCancelled(this);
             }
+        }
 
-            return null;
+        @Override
+        protected void onFailed(Throwable cause)
+        {
+            runnable.onStageFailed(this, cause);
+        }
+    }
+
+    private static class RankedTask implements Comparable<RankedTask>
+    {
+        private final LIFOTask task;
+        private final int rank;
+
+        private RankedTask(LIFOTask task, int rank)
+        {
+            this.task = task;
+            this.rank = rank;
+        }
+
+        @Override
+        public int compareTo(RankedTask other)
+        {
+            return rank < other.rank ? -1 : (rank == other.rank ? 0 : 1);
         }
     }
 
@@ -427,15 +1206,36 @@ public abstract class ImageWorker
         }
     }
 
-    private static class BitmapSetter implements Runnable
+    /**
+     * A bitmap set into an ImageView, and the memory cache entry pinned for it. Cleared when the
+     * ImageView moves on to another bitmap, and enqueued if the ImageView is collected before that.
+     */
+    private static class DisplayedBitmap extends WeakReference<ImageView>
     {
-        protected Object data;
+        // The cache the bitmap is pinned in, or null if it is not pinned
+        private final ImageCache cache;
+        private final String key;
+        private final Bitmap bitmap;
+
+        private DisplayedBitmap(ImageView imageView, ReferenceQueue<ImageView> queue,
+                                ImageCache cache, String key, Bitmap bitmap)
+        {
+            super(imageView, queue);
+            this.cache = cache;
+            this.key = key;
+            this.bitmap = bitmap;
+        }
+    }
+
+    private class BitmapSetter implements Runnable
+    {
+        protected String key;
         protected Bitmap bitmap;
         protected ImageView imageView;
 
-        private BitmapSetter(Object data, Bitmap bitmap, ImageView imageView)
+        private BitmapSetter(String key, Bitmap bitmap, ImageView imageView)
         {
-            this.data = data;
+            this.key = key;
             this.bitmap = bitmap;
             this.imageView = imageView;
         }
@@ -443,16 +1243,24 @@ public abstract class ImageWorker
         @Override
         public void run()
         {
-            if (imageView != null && bitmap != null && data != null)
+            boolean displayed = false;
+            if (imageView != null && bitmap != null && key != null)
             {
-                if (isValidData(data, imageView))
+                if (isValidKey(key, imageView))
                 {
+                    setDisplayedBitmap(imageView, key, bitmap,
+                            mImageCache != null && mImageCache.pinBitmap(key, bitmap));
                     setImageBitmap();
+                    displayed = true;
                 }
             }
+            if (!displayed && bitmap != null)
+            {
+                releaseBitmap(bitmap);
+            }
             imageView = null;
             bitmap = null;
-            data = null;
+            key = null;
         }
 
         protected void setImageBitmap()
@@ -461,14 +1269,14 @@ public abstract class ImageWorker
         }
     }
 
-    private static class FadeInBitmapSetter extends BitmapSetter
+    private class FadeInBitmapSetter extends BitmapSetter
     {
         private static final int FADE_IN_TIME = 200;
         protected Bitmap loadingBitmap;
 
-        private FadeInBitmapSetter(Object data, Bitmap bitmap, ImageView imageView, Bitmap loadingBitmap)
+        private FadeInBitmapSetter(String key, Bitmap bitmap, ImageView imageView, Bitmap loadingBitmap)
         {
-            super(data, bitmap, imageView);
+            super(key, bitmap, imageView);
             this.loadingBitmap = loadingBitmap;
         }
 
@@ -476,6 +1284,20 @@ public abstract class ImageWorker
         protected void setImageBitmap()
         {
             Resources resources = imageView.getContext().getResources();
+            final Drawable current = imageView.getDrawable();
+            if (current instanceof AsyncDrawable && ((AsyncDrawable)current).getBitmap() != loadingBitmap)
+            {
+                // Fade in over the preview shown while loading
+                TransitionDrawable td = new TransitionDrawable(new Drawable[] {
+                        current,
+                        new BitmapDrawable(resources, bitmap)
+                });
+                imageView.setBackgroundDrawable(null);
+                imageView.setImageDrawable(td);
+                td.startTransition(FADE_IN_TIME);
+                return;
+            }
+
             // Transition drawable with a transparent drawable and the final bitmap
             TransitionDrawable td =
                     new TransitionDrawable(new Drawable[] {
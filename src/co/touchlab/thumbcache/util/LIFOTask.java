@@ -1,5 +1,6 @@
 package co.touchlab.thumbcache.util;
 
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -11,13 +12,37 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class LIFOTask extends FutureTask<Object> implements Comparable<LIFOTask>
 {
-    private static long counter = 0;
-    private final long priority;
+    private static final AtomicLong counter = new AtomicLong();
+    private volatile long priority;
+    private volatile LIFOThreadPoolProcessor processor;
+    private volatile HostScheduler hostScheduler;
+    private volatile String host;
+
+    // Timings in System.nanoTime(), kept by the processor to measure queue wait and run time
+    volatile long queuedAtNanos;
+    volatile long startedAtNanos;
 
     public LIFOTask(Runnable runnable)
+    {
+        this(runnable, nextPriority());
+    }
+
+    /**
+     * Create a task with an explicit priority, for example to carry the priority of an earlier
+     * task over to a follow up stage of the same work.
+     */
+    public LIFOTask(Runnable runnable, long priority)
     {
         super(runnable, new Object());
-        priority = counter++;
+        this.priority = priority;
+    }
+
+    /**
+     * @return A priority higher than that of every task created so far.
+     */
+    public static long nextPriority()
+    {
+        return counter.getAndIncrement();
     }
 
     public long getPriority()
@@ -25,9 +50,101 @@ public class LIFOTask extends FutureTask<Object> implements Comparable<LIFOTask>
         return priority;
     }
 
+    /**
+     * Only to be called while the task is not in a queue, as changing the priority of a queued
+     * task would break the queue's ordering.
+     */
+    void setPriority(long priority)
+    {
+        this.priority = priority;
+    }
+
+    void setProcessor(LIFOThreadPoolProcessor processor)
+    {
+        this.processor = processor;
+    }
+
+    void setHostScheduler(HostScheduler hostScheduler, String host)
+    {
+        this.hostScheduler = hostScheduler;
+        this.host = host;
+    }
+
+    /**
+     * @return The host this task was scheduled for, or null if it was not scheduled by host.
+     */
+    String getHost()
+    {
+        return host;
+    }
+
+    /**
+     * Subclasses overriding this must call through to super.
+     */
+    @Override
+    protected void done()
+    {
+        final HostScheduler scheduler = hostScheduler;
+        if (scheduler != null)
+        {
+            scheduler.onTaskDone(this, host);
+        }
+
+        if (!isCancelled())
+        {
+            try
+            {
+                get();
+            }
+            catch (ExecutionException e)
+            {
+                onFailed(e.getCause());
+            }
+            catch (InterruptedException e)
+            {
+                // Never thrown, the task is done
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Called when the runnable threw, which FutureTask would otherwise keep to itself until someone
+     * calls get(), which nobody does for tasks run by a pool. The default implementation does
+     * nothing.
+     *
+     * @param cause What the runnable threw
+     */
+    protected void onFailed(Throwable cause)
+    {
+    }
+
+    /**
+     * Cancels the task and, if it is still waiting to run, takes it out of its queue straight away
+     * rather than leaving it there until a thread picks it up.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        final boolean cancelled = super.cancel(mayInterruptIfRunning);
+        final LIFOThreadPoolProcessor current = processor;
+        if (cancelled && current != null)
+        {
+            current.remove(this);
+        }
+        return cancelled;
+    }
+
+    /**
+     * Orders tasks so that the one with the highest priority, normally the most recently created,
+     * comes first. Two distinct tasks can compare as equal, when a follow up stage carries over the
+     * priority of an earlier task or a task is given the priority of another, and are then run in
+     * no particular order.
+     */
     @Override
     public int compareTo(LIFOTask other)
     {
-        return priority > other.getPriority() ? -1 : 1;
+        final long otherPriority = other.getPriority();
+        return priority > otherPriority ? -1 : (priority == otherPriority ? 0 : 1);
     }
 }
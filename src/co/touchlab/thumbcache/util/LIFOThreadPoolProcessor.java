@@ -1,11 +1,37 @@
 package co.touchlab.thumbcache.util;
 
+import android.util.Log;
+import co.touchlab.thumbcache.BuildConfig;
+
 import java.util.Comparator;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Runs {@link LIFOTask}s on a pool of threads, newest first. The number of tasks waiting to run is
+ * bounded: once the queue is full, the waiting task with the lowest priority is rejected to make
+ * room, which may be the new task itself. A rejected task is cancelled so its owner can tell.
+ * <p/>
+ * The pool is either a fixed size, or adapts between a minimum and maximum number of threads from
+ * measured timings. Over each window of completed tasks, if tasks spent longer waiting in the
+ * queue than running, one thread is added. If tasks took much longer to run than the best seen so
+ * far, the work is contended (a saturated link, a slow server, or too many decodes for the CPU) and
+ * the pool is halved.
+ */
 public class LIFOThreadPoolProcessor
 {
-    private BlockingQueue<Runnable> opsToRun = new PriorityBlockingQueue<Runnable>(64, new Comparator<Runnable>()
+    private static final String TAG = "LIFOThreadPoolProcessor";
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 64;
+
+    // Number of completed tasks to average over before resizing
+    private static final int SAMPLE_WINDOW = 16;
+    // Average run time over the baseline at which the pool is considered contended
+    private static final double CONTENTION_FACTOR = 2.0;
+    // How quickly the baseline run time forgets a past minimum, as a fraction per window. Only
+    // while at the fewest threads, where the pool itself is least to blame for slow tasks.
+    private static final double BASELINE_DECAY = 1.0 / 16;
+
+    private final Comparator<Runnable> comparator = new Comparator<Runnable>()
     {
         @Override
         public int compare(Runnable r0, Runnable r1)
@@ -18,18 +44,272 @@ public class LIFOThreadPoolProcessor
             }
             return 0;
         }
-    });
+    };
+
+    private BlockingQueue<Runnable> opsToRun = new PriorityBlockingQueue<Runnable>(64, comparator);
 
     private ThreadPoolExecutor executor;
+    private final int maxQueueSize;
+    private final int minThreads;
+    private final int maxThreads;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    // Timings of the current sample window, guarded by sampleLock
+    private final Object sampleLock = new Object();
+    private int sampleCount = 0;
+    private long sampleWaitNanos = 0;
+    private long sampleRunNanos = 0;
+    private double baselineRunNanos = 0;
 
     public LIFOThreadPoolProcessor(int threadCount)
     {
-        executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.SECONDS, opsToRun);
+        this(threadCount, DEFAULT_MAX_QUEUE_SIZE);
+    }
+
+    /**
+     * @param threadCount  The number of threads to run tasks on.
+     * @param maxQueueSize The maximum number of tasks waiting to run.
+     */
+    public LIFOThreadPoolProcessor(int threadCount, int maxQueueSize)
+    {
+        this(threadCount, threadCount, maxQueueSize);
+    }
+
+    /**
+     * Create a pool which adapts its size to measured timings, starting at the minimum.
+     *
+     * @param minThreads   The least number of threads to run tasks on.
+     * @param maxThreads   The most number of threads to run tasks on.
+     * @param maxQueueSize The maximum number of tasks waiting to run.
+     */
+    public LIFOThreadPoolProcessor(int minThreads, int maxThreads, int maxQueueSize)
+    {
+        this.maxQueueSize = maxQueueSize;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        executor = new ThreadPoolExecutor(minThreads, minThreads, 0, TimeUnit.SECONDS, opsToRun)
+        {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable runnable)
+            {
+                if (runnable instanceof LIFOTask)
+                {
+                    ((LIFOTask)runnable).startedAtNanos = System.nanoTime();
+                }
+            }
+
+            @Override
+            protected void afterExecute(Runnable runnable, Throwable throwable)
+            {
+                if (runnable instanceof LIFOTask)
+                {
+                    onTaskFinished((LIFOTask)runnable);
+                }
+            }
+        };
+    }
+
+    /**
+     * Queues a task for execution. The task is handed to the executor as is, rather than through
+     * {@link ThreadPoolExecutor#submit(Runnable)}, which would wrap it in a new FutureTask and hide
+     * its priority from the queue's comparator.
+     *
+     * @param task The task to run.
+     * @return The task itself, which doubles as its Future.
+     */
+    public synchronized Future<?> submitTask(LIFOTask task)
+    {
+        if (opsToRun.size() >= maxQueueSize)
+        {
+            final LIFOTask lowest = findLowestPriority();
+            if (lowest == null || comparator.compare(task, lowest) > 0)
+            {
+                // The new task would be the first to go
+                reject(task);
+                return task;
+            }
+            if (opsToRun.remove(lowest))
+            {
+                reject(lowest);
+            }
+        }
+
+        task.setProcessor(this);
+        task.queuedAtNanos = System.nanoTime();
+        executor.execute(task);
+        return task;
+    }
+
+    private LIFOTask findLowestPriority()
+    {
+        LIFOTask lowest = null;
+        for (Runnable runnable : opsToRun)
+        {
+            if (runnable instanceof LIFOTask
+                    && (lowest == null || comparator.compare(runnable, lowest) > 0))
+            {
+                lowest = (LIFOTask)runnable;
+            }
+        }
+        return lowest;
+    }
+
+    private void reject(LIFOTask task)
+    {
+        rejectedCount.incrementAndGet();
+        task.cancel(false);
+        if (BuildConfig.DEBUG)
+        {
+            Log.d(TAG, "reject - queue full, rejected task " + task.getPriority());
+        }
+    }
+
+    private void onTaskFinished(LIFOTask task)
+    {
+        // Cancelled tasks return straight away and would skew the run time
+        if (minThreads == maxThreads || task.isCancelled())
+        {
+            return;
+        }
+
+        final long waitNanos = task.startedAtNanos - task.queuedAtNanos;
+        final long runNanos = System.nanoTime() - task.startedAtNanos;
+
+        synchronized (sampleLock)
+        {
+            final int size = executor.getCorePoolSize();
+            final int newSize = addSample(size, waitNanos, runNanos);
+            if (newSize != size)
+            {
+                setPoolSize(newSize);
+            }
+        }
+    }
+
+    /**
+     * Add the timings of a finished task to the current window and, once the window is full,
+     * decide how many threads to run on. Must hold sampleLock.
+     *
+     * @param size      The current number of threads.
+     * @param waitNanos How long the task waited in the queue.
+     * @param runNanos  How long the task took to run.
+     * @return The number of threads to run on from now on.
+     */
+    int addSample(int size, long waitNanos, long runNanos)
+    {
+        sampleCount++;
+        sampleWaitNanos += waitNanos;
+        sampleRunNanos += runNanos;
+        if (sampleCount < SAMPLE_WINDOW)
+        {
+            return size;
+        }
+
+        final double averageWait = (double)sampleWaitNanos / sampleCount;
+        final double averageRun = (double)sampleRunNanos / sampleCount;
+        sampleCount = 0;
+        sampleWaitNanos = 0;
+        sampleRunNanos = 0;
+
+        if (baselineRunNanos == 0 || averageRun < baselineRunNanos)
+        {
+            baselineRunNanos = averageRun;
+        }
+        else if (size == minThreads)
+        {
+            // Decaying at any size would follow the run time up as each added thread slows the
+            // others down, and contention would never be detected
+            baselineRunNanos += (averageRun - baselineRunNanos) * BASELINE_DECAY;
+        }
+
+        if (averageRun > baselineRunNanos * CONTENTION_FACTOR && size > minThreads)
+        {
+            return Math.max(minThreads, size / 2);
+        }
+        else if (averageWait > averageRun && size < maxThreads)
+        {
+            return size + 1;
+        }
+        return size;
+    }
+
+    private void setPoolSize(int size)
+    {
+        if (BuildConfig.DEBUG)
+        {
+            Log.d(TAG, "setPoolSize - " + executor.getCorePoolSize() + " -> " + size);
+        }
+
+        // The maximum can never be below the core size, so change them in the right order
+        if (size > executor.getMaximumPoolSize())
+        {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        }
+        else
+        {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Change the priority of a task that is still waiting in the queue. Synchronized with
+     * {@link #submitTask(LIFOTask)}, so a new task cannot take the place of this one while it is
+     * out of the queue and push the queue past its limit.
+     *
+     * @return true if the task was queued here and has been given the new priority, false if it is
+     *         not in this queue, for example because it has already started or been cancelled.
+     */
+    public synchronized boolean reprioritize(LIFOTask task, long priority)
+    {
+        if (!opsToRun.remove(task))
+        {
+            return false;
+        }
+        // Cancelling marks the task before taking it out of the queue, so a cancel that found it
+        // out of the queue just now is seen here
+        if (task.isCancelled())
+        {
+            return false;
+        }
+        task.setPriority(priority);
+        // Every worker thread has been started by the time anything waits in the queue, so the
+        // task can go straight back in
+        opsToRun.add(task);
+        return true;
+    }
+
+    /**
+     * Take a task out of the queue, if it has not started yet.
+     */
+    public boolean remove(LIFOTask task)
+    {
+        return executor.remove(task);
+    }
+
+    /**
+     * @return The number of tasks waiting to run.
+     */
+    public int getQueueDepth()
+    {
+        return opsToRun.size();
+    }
+
+    /**
+     * @return The number of threads tasks currently run on.
+     */
+    public int getPoolSize()
+    {
+        return executor.getCorePoolSize();
     }
 
-    public Future<?> submitTask(LIFOTask task)
+    /**
+     * @return The number of tasks rejected so far because the queue was full.
+     */
+    public long getRejectedCount()
     {
-        return executor.submit(task);
+        return rejectedCount.get();
     }
 
     public void clear()
@@ -1,13 +1,152 @@
 package co.touchlab.thumbcache.util;
 
+import java.util.List;
 import java.util.concurrent.Future;
 
+/**
+ * Holds the executors for each stage of loading an image. A request starts on the disk pool, which
+ * only has to look for an already cached bitmap, and is handed off to the network pool when the
+ * source has to be downloaded and then to the decode pool for the CPU bound work. Keeping the
+ * stages apart means a cheap disk hit never waits behind a slow download.
+ */
 public class NetworkThreadPool
 {
-    private static LIFOThreadPoolProcessor pool = new LIFOThreadPoolProcessor(3);
+    private static final int DISK_THREAD_COUNT = 2;
+    private static final int MIN_NETWORK_THREAD_COUNT = 2;
+    private static final int MAX_NETWORK_THREAD_COUNT = 6;
+    private static final int MIN_DECODE_THREAD_COUNT = 1;
+    private static final int MAX_DECODE_THREAD_COUNT =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
 
+    // Roughly a couple of screens worth of thumbnails, anything older has likely scrolled away
+    private static final int DISK_QUEUE_SIZE = 48;
+    private static final int NETWORK_QUEUE_SIZE = 32;
+    private static final int DECODE_QUEUE_SIZE = 32;
+
+    // Most network tasks for one host which may be in the network pool at once
+    private static final int MAX_TASKS_PER_HOST = 2;
+    // Most network tasks for one host which may wait for it, the same bound as the pool's queue
+    private static final int MAX_WAITING_PER_HOST = NETWORK_QUEUE_SIZE;
+
+    private static LIFOThreadPoolProcessor diskPool =
+            new LIFOThreadPoolProcessor(DISK_THREAD_COUNT, DISK_QUEUE_SIZE);
+    // The network and decode pools size themselves between these bounds from measured timings
+    private static LIFOThreadPoolProcessor pool = new LIFOThreadPoolProcessor(
+            MIN_NETWORK_THREAD_COUNT, MAX_NETWORK_THREAD_COUNT, NETWORK_QUEUE_SIZE);
+    private static LIFOThreadPoolProcessor decodePool = new LIFOThreadPoolProcessor(
+            MIN_DECODE_THREAD_COUNT, MAX_DECODE_THREAD_COUNT, DECODE_QUEUE_SIZE);
+
+    private static HostScheduler hostScheduler =
+            new HostScheduler(pool, MAX_TASKS_PER_HOST, MAX_WAITING_PER_HOST);
+
+    /**
+     * Submit a task that downloads data over the network.
+     */
     public static Future<?> submitTask(LIFOTask task)
     {
         return pool.submitTask(task);
     }
+
+    /**
+     * Submit a task that downloads data from the given host over the network. Only a few tasks per
+     * host are let into the network pool at once, the rest wait their turn, so a slow host cannot
+     * hold up requests to other hosts.
+     *
+     * @param task The task to run.
+     * @param host The host the task connects to, or null to submit it without a limit.
+     */
+    public static Future<?> submitTask(LIFOTask task, String host)
+    {
+        if (host == null)
+        {
+            return pool.submitTask(task);
+        }
+        hostScheduler.submitTask(task, host);
+        return task;
+    }
+
+    /**
+     * Submit a task that looks up data in a disk cache.
+     */
+    public static Future<?> submitDiskTask(LIFOTask task)
+    {
+        return diskPool.submitTask(task);
+    }
+
+    /**
+     * Submit a task that decodes or otherwise processes a bitmap.
+     */
+    public static Future<?> submitDecodeTask(LIFOTask task)
+    {
+        return decodePool.submitTask(task);
+    }
+
+    /**
+     * Move the given queued tasks ahead of everything else, in the given order. Tasks that are not
+     * in the list keep their priority and so fall behind the ones that are. Tasks that have already
+     * started are skipped.
+     *
+     * @param tasks The tasks to run next, the most important first.
+     */
+    public static void reprioritize(List<? extends LIFOTask> tasks)
+    {
+        for (int i = tasks.size() - 1; i >= 0; i--)
+        {
+            final LIFOTask task = tasks.get(i);
+            final long priority = LIFOTask.nextPriority();
+            if (!diskPool.reprioritize(task, priority) && !pool.reprioritize(task, priority)
+                    && !decodePool.reprioritize(task, priority) && task.getHost() != null)
+            {
+                hostScheduler.reprioritize(task, task.getHost(), priority);
+            }
+        }
+    }
+
+    /**
+     * @return The number of tasks waiting on the disk pool.
+     */
+    public static int getDiskQueueDepth()
+    {
+        return diskPool.getQueueDepth();
+    }
+
+    /**
+     * @return The number of tasks waiting on the network pool.
+     */
+    public static int getNetworkQueueDepth()
+    {
+        return pool.getQueueDepth();
+    }
+
+    /**
+     * @return The number of tasks waiting on the decode pool.
+     */
+    public static int getDecodeQueueDepth()
+    {
+        return decodePool.getQueueDepth();
+    }
+
+    /**
+     * @return The number of threads the network pool currently runs on.
+     */
+    public static int getNetworkPoolSize()
+    {
+        return pool.getPoolSize();
+    }
+
+    /**
+     * @return The number of threads the decode pool currently runs on.
+     */
+    public static int getDecodePoolSize()
+    {
+        return decodePool.getPoolSize();
+    }
+
+    /**
+     * @return The number of tasks rejected by all pools because their queue was full.
+     */
+    public static long getRejectedCount()
+    {
+        return diskPool.getRejectedCount() + pool.getRejectedCount() + decodePool.getRejectedCount();
+    }
 }
@@ -0,0 +1,63 @@
+package co.touchlab.thumbcache.util;
+
+import android.widget.AbsListView;
+
+/**
+ * Pauses an {@link ImageWorker} while its list is being flung, and resumes it once the list is
+ * touched again or comes to rest, so only rows which are still on screen get loaded. As rows scroll
+ * in and out of view, the work still waiting to run is re-ranked so visible rows load first.
+ */
+public class PauseOnScrollListener implements AbsListView.OnScrollListener
+{
+    private final ImageWorker imageWorker;
+    private final AbsListView.OnScrollListener delegate;
+    private int lastFirstVisibleItem = -1;
+    private int lastVisibleItemCount = -1;
+
+    public PauseOnScrollListener(ImageWorker imageWorker)
+    {
+        this(imageWorker, null);
+    }
+
+    /**
+     * @param imageWorker The ImageWorker to pause and resume.
+     * @param delegate    An optional listener to forward all scroll events to.
+     */
+    public PauseOnScrollListener(ImageWorker imageWorker, AbsListView.OnScrollListener delegate)
+    {
+        this.imageWorker = imageWorker;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState)
+    {
+        imageWorker.setPauseWork(scrollState == SCROLL_STATE_FLING);
+
+        if (delegate != null)
+        {
+            delegate.onScrollStateChanged(view, scrollState);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount)
+    {
+        // onScroll is called every frame while scrolling, only re-rank when the visible rows change
+        if (visibleItemCount > 0 && (firstVisibleItem != lastFirstVisibleItem
+                || visibleItemCount != lastVisibleItemCount))
+        {
+            final boolean scrollingForward = firstVisibleItem >= lastFirstVisibleItem;
+            imageWorker.reprioritize(view, firstVisibleItem,
+                    firstVisibleItem + visibleItemCount - 1, scrollingForward);
+            lastFirstVisibleItem = firstVisibleItem;
+            lastVisibleItemCount = visibleItemCount;
+        }
+
+        if (delegate != null)
+        {
+            delegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package co.touchlab.thumbcache.util;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import co.touchlab.thumbcache.BuildConfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Tiny, blurred previews of images, shown in place of the loading image while the real image is
+ * decoded. A preview is at most {@link #PREVIEW_SIZE} pixels on its longest edge and stored as raw
+ * RGB_565 pixels, about half a kilobyte, so previews for a thousand images fit in a few hundred
+ * kilobytes. Turning one back into a bitmap is cheap enough to do on the UI thread.
+ * <p/>
+ * Previews are kept in memory and appended to a single file, so they survive a restart without
+ * taking up one disk cache entry each. The file is rewritten from memory once it has grown to
+ * twice the memory budget.
+ */
+class PreviewCache
+{
+    private static final String TAG = "PreviewCache";
+    private static final String FILE_NAME = "previews";
+
+    // Longest edge of a preview in pixels, and the radius of the box blur applied to it
+    private static final int PREVIEW_SIZE = 16;
+    private static final int BLUR_RADIUS = 1;
+
+    private final ConcurrentLruCache<String, byte[]> previews;
+    private final File file;
+    private final int maxByteSize;
+    // Length of the file, guarded by "this"
+    private long fileLength = 0;
+
+    /**
+     * @param dir         The directory to keep the previews file in, or null to only keep them in
+     *                    memory
+     * @param maxByteSize The most bytes of previews to keep in memory
+     */
+    PreviewCache(File dir, int maxByteSize)
+    {
+        this.maxByteSize = maxByteSize;
+        this.file = dir != null ? new File(dir, FILE_NAME) : null;
+        this.previews = new ConcurrentLruCache<String, byte[]>(maxByteSize)
+        {
+            @Override
+            protected int sizeOf(String key, byte[] preview)
+            {
+                return preview.length + 2 * key.length();
+            }
+        };
+        load();
+    }
+
+    /**
+     * @return The preview as a bitmap, or null if there is none in memory.
+     */
+    Bitmap get(String key)
+    {
+        final byte[] preview = previews.get(key);
+        if (preview == null)
+        {
+            return null;
+        }
+
+        final int width = preview[0] & 0xff;
+        final int height = preview[1] & 0xff;
+        final int[] colors = new int[width * height];
+        for (int i = 0; i < colors.length; i++)
+        {
+            final int pixel = ((preview[2 + 2 * i] & 0xff) << 8) | (preview[3 + 2 * i] & 0xff);
+            final int r = (pixel >> 11) & 0x1f;
+            final int g = (pixel >> 5) & 0x3f;
+            final int b = pixel & 0x1f;
+            colors[i] = 0xff000000 | ((r << 3 | r >> 2) << 16) | ((g << 2 | g >> 4) << 8) | (b << 3 | b >> 2);
+        }
+        return Bitmap.createBitmap(colors, width, height, Bitmap.Config.RGB_565);
+    }
+
+    /**
+     * Create and store a preview of the bitmap, unless there already is one for the key.
+     */
+    void put(String key, Bitmap bitmap)
+    {
+        if (previews.peek(key) != null)
+        {
+            return;
+        }
+
+        final byte[] preview = createPreview(bitmap);
+        previews.put(key, preview);
+        append(key, preview);
+    }
+
+    synchronized void clear()
+    {
+        previews.evictAll();
+        if (file != null)
+        {
+            file.delete();
+        }
+        fileLength = 0;
+    }
+
+    private static byte[] createPreview(Bitmap bitmap)
+    {
+        final float scale =
+                (float)PREVIEW_SIZE / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        final int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        final int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+
+        final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        final int[] colors = new int[width * height];
+        scaled.getPixels(colors, 0, width, 0, 0, width, height);
+        if (scaled != bitmap)
+        {
+            scaled.recycle();
+        }
+
+        final int[] blurred = blur(colors, width, height);
+        final byte[] preview = new byte[2 + 2 * blurred.length];
+        preview[0] = (byte)width;
+        preview[1] = (byte)height;
+        for (int i = 0; i < blurred.length; i++)
+        {
+            final int color = blurred[i];
+            final int pixel = ((color >> 8) & 0xf800) | ((color >> 5) & 0x07e0) | ((color >> 3) & 0x001f);
+            preview[2 + 2 * i] = (byte)(pixel >> 8);
+            preview[3 + 2 * i] = (byte)pixel;
+        }
+        return preview;
+    }
+
+    /**
+     * Box blur, so the preview looks soft rather than blocky once scaled up.
+     */
+    private static int[] blur(int[] colors, int width, int height)
+    {
+        final int[] blurred = new int[colors.length];
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                int r = 0, g = 0, b = 0, count = 0;
+                for (int dy = -BLUR_RADIUS; dy <= BLUR_RADIUS; dy++)
+                {
+                    for (int dx = -BLUR_RADIUS; dx <= BLUR_RADIUS; dx++)
+                    {
+                        final int sx = Math.min(width - 1, Math.max(0, x + dx));
+                        final int sy = Math.min(height - 1, Math.max(0, y + dy));
+                        final int color = colors[sy * width + sx];
+                        r += (color >> 16) & 0xff;
+                        g += (color >> 8) & 0xff;
+                        b += color & 0xff;
+                        count++;
+                    }
+                }
+                blurred[y * width + x] = 0xff000000 | ((r / count) << 16) | ((g / count) << 8) | (b / count);
+            }
+        }
+        return blurred;
+    }
+
+    private synchronized void load()
+    {
+        if (file == null || !file.exists())
+        {
+            return;
+        }
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), Utils.IO_BUFFER_SIZE));
+            while (true)
+            {
+                final String key = in.readUTF();
+                final byte[] preview = new byte[in.readUnsignedShort()];
+                in.readFully(preview);
+                previews.put(key, preview);
+            }
+        }
+        catch (EOFException e)
+        {
+            // Done, a record cut short by a crash is dropped
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "load - " + e);
+        }
+        finally
+        {
+            closeQuietly(in);
+        }
+        fileLength = file.length();
+
+        if (BuildConfig.DEBUG)
+        {
+            Log.d(TAG, "load - " + previews.size() + " bytes of previews");
+        }
+    }
+
+    private synchronized void append(String key, byte[] preview)
+    {
+        if (file == null)
+        {
+            return;
+        }
+
+        if (fileLength > 2L * maxByteSize)
+        {
+            compact();
+            return;
+        }
+
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            writeRecord(out, key, preview);
+            out.flush();
+            fileLength += out.size();
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "append - " + e);
+        }
+        finally
+        {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Rewrite the file with only the previews still in memory.
+     */
+    private void compact()
+    {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), Utils.IO_BUFFER_SIZE));
+            for (Map.Entry<String, byte[]> entry : previews.snapshot().entrySet())
+            {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+            out.close();
+            out = null;
+            if (tempFile.renameTo(file))
+            {
+                fileLength = file.length();
+            }
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "compact - " + e);
+        }
+        finally
+        {
+            closeQuietly(out);
+            tempFile.delete();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, byte[] preview)
+            throws IOException
+    {
+        out.writeUTF(key);
+        out.writeShort(preview.length);
+        out.write(preview);
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable != null)
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch (IOException e)
+            {
+                // Ignored
+            }
+        }
+    }
+}
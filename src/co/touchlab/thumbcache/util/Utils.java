@@ -143,4 +143,34 @@ public class Utils {
     public static boolean hasActionBar() {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
     }
+
+    /**
+     * Check if OS version is Honeycomb or higher, where bitmaps can be reused when decoding.
+     *
+     * @return
+     */
+    public static boolean hasHoneycomb() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Check if OS version is Ice Cream Sandwich or higher, where components can be told to trim
+     * their memory.
+     *
+     * @return
+     */
+    public static boolean hasIceCreamSandwich() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+    }
+
+    /**
+     * Check if OS version is KitKat or higher, where a reused bitmap only needs to be big enough
+     * rather than the exact size of the decoded image.
+     *
+     * @return
+     */
+    public static boolean hasKitKat() {
+        // Build.VERSION_CODES.KITKAT is newer than the SDK this builds against
+        return Build.VERSION.SDK_INT >= 19;
+    }
 }
@@ -0,0 +1,218 @@
+package co.touchlab.thumbcache.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contention microbenchmark for {@link ConcurrentLruCache}, run as a plain JVM program. One reader
+ * thread, standing in for the UI thread, looks up a hot set of keys while writer threads, standing
+ * in for the worker pools, insert new keys and so keep the cache evicting. Every configuration is
+ * run against the cache and against a LinkedHashMap behind one monitor, which is how
+ * android.support.v4.util.LruCache works.
+ * <p/>
+ * Reports writer throughput, reader throughput and the reader's 99th percentile and worst lookup
+ * time, for growing cache sizes and numbers of writers. Arguments: [seconds per run] [writers...]
+ */
+public class ConcurrentLruCacheBenchmark
+{
+    private static final int HOT_KEYS = 64;
+    private static final int LATENCY_SAMPLES = 1 << 20;
+
+    public static void main(String[] args) throws Exception
+    {
+        final double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+        int[] writerCounts = {1, 2, 4};
+        if (args.length > 1)
+        {
+            writerCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+            {
+                writerCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("cpus=" + Runtime.getRuntime().availableProcessors());
+        System.out.println(String.format("%-12s %8s %7s %12s %12s %9s %9s", "cache", "entries",
+                "writers", "puts/s", "gets/s", "p99 get", "max get"));
+        for (int entries : new int[] {1000, 10000, 100000})
+        {
+            for (int writers : writerCounts)
+            {
+                // Warm up once, then measure
+                run(new Concurrent(entries), entries, writers, seconds / 4);
+                print("concurrent", entries, writers, run(new Concurrent(entries), entries, writers, seconds));
+                run(new Synchronized(entries), entries, writers, seconds / 4);
+                print("synchronized", entries, writers, run(new Synchronized(entries), entries, writers, seconds));
+            }
+        }
+    }
+
+    private static void print(String name, int entries, int writers, Result result)
+    {
+        System.out.println(String.format("%-12s %8d %7d %12.0f %12.0f %7.1fus %7.1fus", name, entries,
+                writers, result.putsPerSecond, result.getsPerSecond, result.p99Nanos / 1000.0,
+                result.maxNanos / 1000.0));
+    }
+
+    private static Result run(final Cache cache, int entries, int writers, double seconds)
+            throws InterruptedException
+    {
+        // Fill the cache so every write evicts
+        for (int i = 0; i < entries; i++)
+        {
+            cache.put(-i - 1, i);
+        }
+        for (int i = 0; i < HOT_KEYS; i++)
+        {
+            cache.put(i, i);
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong puts = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++)
+        {
+            final int writer = w;
+            threads[w] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    awaitQuietly(start);
+                    final Random random = new Random(writer);
+                    int key = HOT_KEYS + writer;
+                    long count = 0;
+                    while (!stop.get())
+                    {
+                        // A miss, then the loaded value goes in, like ImageCache.addBitmapToCache
+                        cache.get(key);
+                        cache.put(key, key);
+                        cache.get(random.nextInt(HOT_KEYS));
+                        key += threads.length;
+                        count++;
+                    }
+                    puts.addAndGet(count);
+                }
+            };
+            threads[w].start();
+        }
+
+        final long[] latencies = new long[LATENCY_SAMPLES];
+        int samples = 0;
+        long gets = 0;
+        long maxNanos = 0;
+        start.countDown();
+        final long end = System.nanoTime() + (long)(seconds * 1e9);
+        while (System.nanoTime() < end)
+        {
+            final long before = System.nanoTime();
+            cache.get((int)(gets % HOT_KEYS));
+            final long took = System.nanoTime() - before;
+            maxNanos = Math.max(maxNanos, took);
+            latencies[samples] = took;
+            samples = (samples + 1) & (LATENCY_SAMPLES - 1);
+            gets++;
+        }
+        stop.set(true);
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        final long[] sorted = Arrays.copyOf(latencies, (int)Math.min(gets, LATENCY_SAMPLES));
+        Arrays.sort(sorted);
+        final Result result = new Result();
+        result.putsPerSecond = puts.get() / seconds;
+        result.getsPerSecond = gets / seconds;
+        result.p99Nanos = sorted[(int)(sorted.length * 0.99)];
+        result.maxNanos = maxNanos;
+        return result;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Result
+    {
+        double putsPerSecond;
+        double getsPerSecond;
+        long p99Nanos;
+        long maxNanos;
+    }
+
+    private interface Cache
+    {
+        Integer get(Integer key);
+
+        void put(Integer key, Integer value);
+    }
+
+    private static class Concurrent implements Cache
+    {
+        private final ConcurrentLruCache<Integer, Integer> cache;
+
+        Concurrent(int entries)
+        {
+            cache = new ConcurrentLruCache<Integer, Integer>(entries + HOT_KEYS);
+        }
+
+        @Override
+        public Integer get(Integer key)
+        {
+            return cache.get(key);
+        }
+
+        @Override
+        public void put(Integer key, Integer value)
+        {
+            cache.put(key, value);
+        }
+    }
+
+    /**
+     * The locking of android.support.v4.util.LruCache: one monitor around an access ordered map.
+     */
+    private static class Synchronized implements Cache
+    {
+        private final int maxSize;
+        private final LinkedHashMap<Integer, Integer> map =
+                new LinkedHashMap<Integer, Integer>(16, 0.75f, true);
+
+        Synchronized(int entries)
+        {
+            maxSize = entries + HOT_KEYS;
+        }
+
+        @Override
+        public synchronized Integer get(Integer key)
+        {
+            return map.get(key);
+        }
+
+        @Override
+        public synchronized void put(Integer key, Integer value)
+        {
+            map.put(key, value);
+            while (map.size() > maxSize)
+            {
+                final Map.Entry<Integer, Integer> eldest = map.entrySet().iterator().next();
+                map.remove(eldest.getKey());
+            }
+        }
+    }
+}
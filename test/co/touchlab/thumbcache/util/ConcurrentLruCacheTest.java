@@ -0,0 +1,246 @@
+package co.touchlab.thumbcache.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentLruCacheTest
+{
+    @Test
+    public void evictsLeastRecentlyPut()
+    {
+        final RecordingCache cache = new RecordingCache(3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.put("d", "D");
+
+        assertEquals(3, cache.size());
+        assertNull(cache.get("a"));
+        assertEquals("[a]", cache.evicted.toString());
+    }
+
+    @Test
+    public void readEntryIsNotEvicted()
+    {
+        final RecordingCache cache = new RecordingCache(3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.get("a");
+        cache.put("d", "D");
+
+        assertEquals("[b]", cache.evicted.toString());
+        assertEquals("A", cache.get("a"));
+    }
+
+    @Test
+    public void replacedEntryIsMostRecentlyUsed()
+    {
+        final RecordingCache cache = new RecordingCache(3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.put("a", "A2");
+        cache.put("d", "D");
+
+        assertEquals("A2", cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void pinnedEntryIsNeverEvicted()
+    {
+        final RecordingCache cache = new RecordingCache(2);
+        cache.put("a", "A");
+        assertTrue(cache.pin("a", "A"));
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.put("d", "D");
+
+        assertEquals("A", cache.get("a"));
+        assertEquals(1, cache.pinnedSize());
+        assertEquals("[b]", cache.evicted.toString());
+
+        // Unpinning never evicts, the next write queues it again as the most recently used
+        cache.unpin("a", "A");
+        assertEquals(0, cache.pinnedSize());
+        assertEquals(3, cache.size());
+        assertEquals("[b]", cache.evicted.toString());
+        cache.put("e", "E");
+        assertEquals("[b, c, d]", cache.evicted.toString());
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void entryPinnedAgainBeforeNextWriteStaysPinned()
+    {
+        final RecordingCache cache = new RecordingCache(1);
+        cache.put("a", "A");
+        assertTrue(cache.pin("a", "A"));
+        cache.put("b", "B");
+        cache.unpin("a", "A");
+        assertTrue(cache.pin("a", "A"));
+        cache.put("c", "C");
+
+        assertEquals("[b]", cache.evicted.toString());
+        assertEquals("A", cache.get("a"));
+        assertEquals(1, cache.pinnedSize());
+    }
+
+    @Test
+    public void removedEntryCannotBePinned()
+    {
+        final RecordingCache cache = new RecordingCache(2);
+        cache.put("a", "A");
+        assertTrue(cache.pin("a", "A"));
+        cache.put("a", "A2");
+
+        assertEquals(0, cache.pinnedSize());
+        assertFalse(cache.pin("a", "A"));
+        cache.unpin("a", "A");
+        assertEquals(0, cache.pinnedSize());
+    }
+
+    @Test
+    public void evictAllKeepsPinnedEntries()
+    {
+        final RecordingCache cache = new RecordingCache(10);
+        for (int i = 0; i < 5; i++)
+        {
+            cache.put("k" + i, "v" + i);
+        }
+        assertTrue(cache.pin("k2", cache.get("k2")));
+        cache.evictAll();
+
+        assertEquals(1, cache.size());
+        assertEquals("v2", cache.get("k2"));
+    }
+
+    @Test
+    public void staysWithinMaxSizeUnderManyWrites()
+    {
+        final RecordingCache cache = new RecordingCache(100);
+        for (int i = 0; i < 100000; i++)
+        {
+            cache.put("k" + i, "v" + i);
+            cache.get("k" + (i / 2));
+        }
+
+        assertEquals(100, cache.size());
+        assertEquals(100000 - 100, cache.evicted.size());
+    }
+
+    @Test
+    public void peekDoesNotCountAsUse()
+    {
+        final RecordingCache cache = new RecordingCache(3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        assertEquals("A", cache.peek("a"));
+        assertNull(cache.peek("z"));
+        cache.put("d", "D");
+
+        assertEquals("[a]", cache.evicted.toString());
+        assertEquals(0, cache.hitCount());
+        assertEquals(0, cache.missCount());
+    }
+
+    @Test
+    public void frequencyAdmissionKeepsHotSetThroughScans()
+    {
+        final Trace trace = new Trace(30);
+        final double lru = trace.replay(new ConcurrentLruCache<Integer, Integer>(100, false));
+        final double tinyLfu = trace.replay(new ConcurrentLruCache<Integer, Integer>(100, true));
+
+        assertTrue(hitRates(lru, tinyLfu), tinyLfu > lru + 10);
+    }
+
+    @Test
+    public void frequencyAdmissionMatchesLruWithoutScans()
+    {
+        final Trace trace = new Trace(0);
+        final double lru = trace.replay(new ConcurrentLruCache<Integer, Integer>(100, false));
+        final double tinyLfu = trace.replay(new ConcurrentLruCache<Integer, Integer>(100, true));
+
+        assertFalse(hitRates(lru, tinyLfu), tinyLfu < lru - 2);
+    }
+
+    private static String hitRates(double lru, double tinyLfu)
+    {
+        return String.format("Hit rate LRU %.1f%%, W-TinyLFU %.1f%%", lru, tinyLfu);
+    }
+
+    /**
+     * A synthetic trace of image requests: a hot set of images revisited with a Gaussian spread,
+     * interleaved with flings past images which are each seen once. Replayed the way ImageWorker
+     * uses its cache, one get per request and a put after a miss.
+     */
+    private static class Trace
+    {
+        private static final int REQUESTS = 200000;
+
+        private final int[] keys = new int[REQUESTS];
+
+        Trace(int scanPercent)
+        {
+            final Random random = new Random(42);
+            int scanKey = 100000;
+            for (int i = 0; i < REQUESTS; i++)
+            {
+                if (random.nextInt(100) < scanPercent)
+                {
+                    keys[i] = scanKey++;
+                }
+                else
+                {
+                    keys[i] = (int)Math.min(999, Math.abs(random.nextGaussian() * 60));
+                }
+            }
+        }
+
+        /**
+         * @return the hit rate in percent
+         */
+        double replay(ConcurrentLruCache<Integer, Integer> cache)
+        {
+            for (int key : keys)
+            {
+                if (cache.get(key) == null)
+                {
+                    cache.put(key, key);
+                }
+            }
+            assertEquals(REQUESTS, cache.hitCount() + cache.missCount());
+            return cache.hitCount() * 100.0 / REQUESTS;
+        }
+    }
+
+    private static class RecordingCache extends ConcurrentLruCache<String, String>
+    {
+        final List<String> evicted = new ArrayList<String>();
+
+        RecordingCache(int maxSize)
+        {
+            super(maxSize);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue)
+        {
+            if (evicted)
+            {
+                this.evicted.add(key);
+            }
+        }
+    }
+}
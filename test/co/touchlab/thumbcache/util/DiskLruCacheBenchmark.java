@@ -0,0 +1,235 @@
+package co.touchlab.thumbcache.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contention microbenchmark for {@link DiskLruCache}, run as a program on a device or on a JVM with
+ * the Android classes it uses on the classpath. N threads, standing in for the disk and decode
+ * pools, each loop over a {@link DiskLruCache#getBytes}, a {@link DiskLruCache#get} and a
+ * {@link DiskLruCache#put(String, byte[])} of a new key. With contended keys every thread reads the
+ * same few keys, with independent keys each thread reads keys of its own. Every configuration is
+ * run against the cache and against the cache behind one monitor, which is how it locked before
+ * file I/O moved under striped key locks.
+ * <p/>
+ * The entries are random bytes, not images, so get fails to decode them straight after opening
+ * the file: it measures the locking around a read, not decoding. Reports operations per second
+ * over all threads. Arguments: [seconds per run] [threads...]
+ */
+public class DiskLruCacheBenchmark
+{
+    private static final int ENTRY_BYTES = 40 * 1024;
+    // Keys read by each thread, well within the 64 entries the cache holds
+    private static final int HOT_KEYS = 4;
+
+    public static void main(String[] args) throws Exception
+    {
+        final double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+        int[] threadCounts = {1, 2, 4, 8};
+        if (args.length > 1)
+        {
+            threadCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+            {
+                threadCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        final byte[] data = new byte[ENTRY_BYTES];
+        new Random(42).nextBytes(data);
+
+        System.out.println("cpus=" + Runtime.getRuntime().availableProcessors());
+        System.out.println(String.format("%-8s %-12s %7s %12s", "lock", "keys", "threads", "ops/s"));
+        for (boolean contended : new boolean[] {true, false})
+        {
+            for (int threads : threadCounts)
+            {
+                // Warm up once, then measure
+                run(false, contended, threads, data, seconds / 4);
+                print("striped", contended, threads, run(false, contended, threads, data, seconds));
+                run(true, contended, threads, data, seconds / 4);
+                print("global", contended, threads, run(true, contended, threads, data, seconds));
+            }
+        }
+    }
+
+    private static void print(String lock, boolean contended, int threads, double opsPerSecond)
+    {
+        System.out.println(String.format("%-8s %-12s %7d %12.0f", lock,
+                contended ? "contended" : "independent", threads, opsPerSecond));
+    }
+
+    /**
+     * @return operations per second, over all threads
+     */
+    private static double run(boolean globalLock, final boolean contended, int threadCount,
+            final byte[] data, double seconds) throws Exception
+    {
+        final File dir = createTempDir();
+        try
+        {
+            final DiskLruCache diskCache = DiskLruCache.openCache(null, dir, 1024L * 1024 * 1024);
+            final Cache cache = globalLock ? new Global(diskCache) : new Striped(diskCache);
+            for (int t = 0; t < (contended ? 1 : threadCount); t++)
+            {
+                for (int i = 0; i < HOT_KEYS; i++)
+                {
+                    cache.put(hotKey(t, i), data);
+                }
+            }
+
+            final AtomicBoolean stop = new AtomicBoolean();
+            final AtomicLong ops = new AtomicLong();
+            final CountDownLatch start = new CountDownLatch(1);
+            final Thread[] threads = new Thread[threadCount];
+            for (int t = 0; t < threadCount; t++)
+            {
+                final int thread = t;
+                threads[t] = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        awaitQuietly(start);
+                        final int owner = contended ? 0 : thread;
+                        long count = 0;
+                        while (!stop.get())
+                        {
+                            cache.getBytes(hotKey(owner, (int)(count % HOT_KEYS)));
+                            cache.get(hotKey(owner, (int)((count + 1) % HOT_KEYS)));
+                            cache.put("new-" + thread + "-" + count, data);
+                            count++;
+                        }
+                        ops.addAndGet(count * 3);
+                    }
+                };
+                threads[t].start();
+            }
+
+            start.countDown();
+            Thread.sleep((long)(seconds * 1000));
+            stop.set(true);
+            for (Thread thread : threads)
+            {
+                thread.join();
+            }
+            return ops.get() / seconds;
+        }
+        finally
+        {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static String hotKey(int owner, int index)
+    {
+        return "hot-" + owner + "-" + index;
+    }
+
+    private static File createTempDir() throws IOException
+    {
+        final File dir = File.createTempFile("DiskLruCacheBenchmark", "");
+        if (!dir.delete() || !dir.mkdir())
+        {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        final File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Cache
+    {
+        void get(String key);
+
+        void getBytes(String key);
+
+        void put(String key, byte[] data);
+    }
+
+    private static class Striped implements Cache
+    {
+        private final DiskLruCache cache;
+
+        Striped(DiskLruCache cache)
+        {
+            this.cache = cache;
+        }
+
+        @Override
+        public void get(String key)
+        {
+            cache.get(key);
+        }
+
+        @Override
+        public void getBytes(String key)
+        {
+            cache.getBytes(key);
+        }
+
+        @Override
+        public void put(String key, byte[] data)
+        {
+            cache.put(key, data);
+        }
+    }
+
+    /**
+     * The locking DiskLruCache had before: one monitor held across the file I/O of every call.
+     */
+    private static class Global implements Cache
+    {
+        private final DiskLruCache cache;
+
+        Global(DiskLruCache cache)
+        {
+            this.cache = cache;
+        }
+
+        @Override
+        public synchronized void get(String key)
+        {
+            cache.get(key);
+        }
+
+        @Override
+        public synchronized void getBytes(String key)
+        {
+            cache.getBytes(key);
+        }
+
+        @Override
+        public synchronized void put(String key, byte[] data)
+        {
+            cache.put(key, data);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package co.touchlab.thumbcache.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static co.touchlab.thumbcache.util.PoolTestUtil.blockThread;
+import static co.touchlab.thumbcache.util.PoolTestUtil.recordRun;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HostSchedulerTest
+{
+    @Test(timeout = 5000)
+    public void fullHostCancelsLowestPriority() throws Exception
+    {
+        final LIFOThreadPoolProcessor pool = new LIFOThreadPoolProcessor(1);
+        final HostScheduler scheduler = new HostScheduler(pool, 1, 2);
+        final CountDownLatch gate = blockThread(pool);
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<LIFOTask> tasks = new ArrayList<LIFOTask>();
+        for (int i = 0; i < 5; i++)
+        {
+            final LIFOTask task = new LIFOTask(recordRun(order, i, done));
+            tasks.add(task);
+            scheduler.submitTask(task, "example.com");
+        }
+
+        // The first went straight to the pool, then each new task pushed out the oldest waiting
+        assertTrue(tasks.get(1).isCancelled());
+        assertTrue(tasks.get(2).isCancelled());
+        gate.countDown();
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals("[0, 4, 3]", order.toString());
+        assertFalse(tasks.get(3).isCancelled());
+    }
+
+    @Test(timeout = 5000)
+    public void lowerPriorityTaskIsRejectedWhenHostIsFull() throws Exception
+    {
+        final LIFOThreadPoolProcessor pool = new LIFOThreadPoolProcessor(1);
+        final HostScheduler scheduler = new HostScheduler(pool, 1, 1);
+        final CountDownLatch gate = blockThread(pool);
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(2);
+        final long oldPriority = LIFOTask.nextPriority();
+        scheduler.submitTask(new LIFOTask(recordRun(order, 0, done)), "example.com");
+        scheduler.submitTask(new LIFOTask(recordRun(order, 1, done)), "example.com");
+        final LIFOTask old = new LIFOTask(recordRun(order, 2, done), oldPriority);
+        scheduler.submitTask(old, "example.com");
+
+        assertTrue(old.isCancelled());
+        gate.countDown();
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals("[0, 1]", order.toString());
+    }
+}
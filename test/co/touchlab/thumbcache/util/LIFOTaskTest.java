@@ -0,0 +1,106 @@
+package co.touchlab.thumbcache.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LIFOTaskTest
+{
+    @Test(timeout = 5000)
+    public void failureIsReportedWhenRunOnPool() throws Exception
+    {
+        final RuntimeException thrown = new IllegalStateException("decode failed");
+        final RecordingTask task = new RecordingTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                throw thrown;
+            }
+        });
+        new LIFOThreadPoolProcessor(1).submitTask(task);
+
+        assertTrue(task.done.await(2, TimeUnit.SECONDS));
+        assertSame(thrown, task.failure.get());
+    }
+
+    @Test(timeout = 5000)
+    public void errorIsReported() throws Exception
+    {
+        final Error thrown = new OutOfMemoryError();
+        final RecordingTask task = new RecordingTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                throw thrown;
+            }
+        });
+        task.run();
+
+        assertSame(thrown, task.failure.get());
+    }
+
+    @Test
+    public void successIsNotAFailure()
+    {
+        final RecordingTask task = new RecordingTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        });
+        task.run();
+
+        assertTrue(task.isDone());
+        assertNull(task.failure.get());
+    }
+
+    @Test
+    public void cancelIsNotAFailure()
+    {
+        final RecordingTask task = new RecordingTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        });
+        assertTrue(task.cancel(false));
+
+        assertNull(task.failure.get());
+        assertEquals(0, task.done.getCount());
+    }
+
+    private static class RecordingTask extends LIFOTask
+    {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        RecordingTask(Runnable runnable)
+        {
+            super(runnable);
+        }
+
+        @Override
+        protected void done()
+        {
+            super.done();
+            done.countDown();
+        }
+
+        @Override
+        protected void onFailed(Throwable cause)
+        {
+            failure.set(cause);
+        }
+    }
+}
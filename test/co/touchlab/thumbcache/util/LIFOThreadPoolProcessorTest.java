@@ -0,0 +1,82 @@
+package co.touchlab.thumbcache.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static co.touchlab.thumbcache.util.PoolTestUtil.blockThread;
+import static co.touchlab.thumbcache.util.PoolTestUtil.recordRun;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LIFOThreadPoolProcessorTest
+{
+    private static final int TASKS = 10;
+
+    @Test(timeout = 5000)
+    public void runsNewestFirst() throws Exception
+    {
+        final LIFOThreadPoolProcessor processor = new LIFOThreadPoolProcessor(1);
+        final CountDownLatch gate = blockThread(processor);
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(TASKS);
+        for (int i = 0; i < TASKS; i++)
+        {
+            processor.submitTask(new LIFOTask(recordRun(order, i, done)));
+        }
+        gate.countDown();
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals("[9, 8, 7, 6, 5, 4, 3, 2, 1, 0]", order.toString());
+    }
+
+    @Test(timeout = 5000)
+    public void fullQueueRejectsOldest() throws Exception
+    {
+        final LIFOThreadPoolProcessor processor = new LIFOThreadPoolProcessor(1, 3);
+        final CountDownLatch gate = blockThread(processor);
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<LIFOTask> tasks = new ArrayList<LIFOTask>();
+        for (int i = 0; i < 5; i++)
+        {
+            final LIFOTask task = new LIFOTask(recordRun(order, i, done));
+            tasks.add(task);
+            processor.submitTask(task);
+        }
+        gate.countDown();
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals("[4, 3, 2]", order.toString());
+        assertEquals(2, processor.getRejectedCount());
+        assertTrue(tasks.get(0).isCancelled());
+        assertTrue(tasks.get(1).isCancelled());
+        assertFalse(tasks.get(2).isCancelled());
+    }
+
+    @Test(timeout = 5000)
+    public void reprioritizedTaskRunsFirst() throws Exception
+    {
+        final LIFOThreadPoolProcessor processor = new LIFOThreadPoolProcessor(1);
+        final CountDownLatch gate = blockThread(processor);
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(3);
+        final LIFOTask oldest = new LIFOTask(recordRun(order, 0, done));
+        processor.submitTask(oldest);
+        processor.submitTask(new LIFOTask(recordRun(order, 1, done)));
+        processor.submitTask(new LIFOTask(recordRun(order, 2, done)));
+        assertTrue(processor.reprioritize(oldest, LIFOTask.nextPriority()));
+        gate.countDown();
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals("[0, 2, 1]", order.toString());
+    }
+}
@@ -0,0 +1,156 @@
+package co.touchlab.thumbcache.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulates how {@link LIFOThreadPoolProcessor} sizes itself, by feeding its sizing logic the
+ * timings a model of a shared resource would produce, such as a network link which can only
+ * serve so many transfers at full speed. No threads are started, so the results are exact.
+ */
+public class PoolSizingSimulationTest
+{
+    private static final int MIN_THREADS = 2;
+    private static final int MAX_THREADS = 8;
+    private static final int TASKS = 16 * 400;
+
+    @Test
+    public void backlogSettlesAroundCapacity()
+    {
+        final Simulation simulation = new Simulation(3, true);
+        simulation.run(TASKS / 4);
+        simulation.resetStatistics();
+        simulation.run(TASKS);
+
+        // Grows past capacity until tasks slow down, then halves, never far off either side
+        final String message = "Capacity 3: " + simulation;
+        assertTrue(message, simulation.smallestSize >= 3);
+        assertTrue(message, simulation.largestSize <= 2 * 3 + 1);
+        assertTrue(message, simulation.throughputPercent() >= 95);
+    }
+
+    @Test
+    public void backlogGrowsToMaximumWhenNotContended()
+    {
+        final Simulation simulation = new Simulation(MAX_THREADS, true);
+        simulation.run(TASKS);
+
+        final String message = "Capacity " + MAX_THREADS + ": " + simulation;
+        assertEquals(message, MAX_THREADS, simulation.size);
+        assertEquals(message, MAX_THREADS, simulation.largestSize);
+    }
+
+    @Test
+    public void lightLoadStaysAtMinimum()
+    {
+        final Simulation simulation = new Simulation(3, false);
+        simulation.run(TASKS);
+
+        assertEquals(MIN_THREADS, simulation.largestSize);
+    }
+
+    @Test
+    public void settlesAgainWhenCapacityDrops()
+    {
+        final Simulation simulation = new Simulation(MAX_THREADS, true);
+        simulation.run(TASKS);
+        simulation.capacity = 2;
+        simulation.run(TASKS / 4);
+        simulation.resetStatistics();
+        simulation.run(TASKS);
+
+        final String message = "Capacity " + MAX_THREADS + " then 2: " + simulation;
+        assertTrue(message, simulation.largestSize <= 2 * 2 + 1);
+        assertTrue(message, simulation.throughputPercent() >= 95);
+    }
+
+    @Test
+    public void recoversWhenEveryTaskSlowsDown()
+    {
+        final Simulation simulation = new Simulation(MAX_THREADS, true);
+        simulation.run(TASKS);
+        // A slower server, which no number of threads makes faster or slower
+        simulation.taskNanos *= 3;
+        simulation.run(TASKS);
+        simulation.resetStatistics();
+        simulation.run(TASKS);
+
+        final String message = "Capacity " + MAX_THREADS + ", tasks 3 times slower: " + simulation;
+        assertEquals(message, MAX_THREADS, simulation.size);
+        assertTrue(message, simulation.throughputPercent() >= 95);
+    }
+
+    /**
+     * A pool running tasks against a resource which serves up to capacity tasks at full speed and
+     * shares itself between any more, so that each takes longer.
+     */
+    private static class Simulation
+    {
+        // Tasks waiting in the queue while there is a backlog, as in a fling
+        private static final int BACKLOG = 32;
+
+        private final LIFOThreadPoolProcessor processor =
+                new LIFOThreadPoolProcessor(MIN_THREADS, MAX_THREADS, BACKLOG);
+        private final boolean backlog;
+        int capacity;
+        long taskNanos = 50 * 1000 * 1000;
+        int size = MIN_THREADS;
+
+        int smallestSize;
+        int largestSize;
+        private long tasks;
+        private double threadSum;
+        private double throughputSum;
+
+        Simulation(int capacity, boolean backlog)
+        {
+            this.capacity = capacity;
+            this.backlog = backlog;
+            resetStatistics();
+        }
+
+        void resetStatistics()
+        {
+            smallestSize = size;
+            largestSize = size;
+            tasks = 0;
+            threadSum = 0;
+            throughputSum = 0;
+        }
+
+        void run(int count)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                // Without a backlog only one task is asked for at a time, and never waits
+                final int running = backlog ? size : 1;
+                final long runNanos = taskNanos * Math.max(capacity, running) / capacity;
+                final long waitNanos = backlog ? BACKLOG * runNanos / running : 0;
+
+                size = processor.addSample(size, waitNanos, runNanos);
+                smallestSize = Math.min(smallestSize, size);
+                largestSize = Math.max(largestSize, size);
+                tasks++;
+                threadSum += size;
+                throughputSum += Math.min(running, capacity);
+            }
+        }
+
+        /**
+         * @return How much of the resource was in use, in percent of its capacity.
+         */
+        double throughputPercent()
+        {
+            return throughputSum * 100 / tasks / capacity;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("threads %d-%d, %.1f on average, %.0f%% of capacity used",
+                    smallestSize, largestSize, threadSum / tasks, throughputPercent());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package co.touchlab.thumbcache.util;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Helpers for tests which check the order tasks run in on a {@link LIFOThreadPoolProcessor}.
+ */
+final class PoolTestUtil
+{
+    private PoolTestUtil()
+    {
+    }
+
+    /**
+     * Occupy the single thread of the processor until the returned latch is counted down, so the
+     * tasks submitted meanwhile all wait in the queue.
+     */
+    static CountDownLatch blockThread(LIFOThreadPoolProcessor processor)
+            throws InterruptedException
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        processor.submitTask(new LIFOTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+                try
+                {
+                    gate.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        return gate;
+    }
+
+    /**
+     * @return A runnable which adds id to order when it runs, then counts down done.
+     */
+    static Runnable recordRun(final List<Integer> order, final int id, final CountDownLatch done)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                order.add(id);
+                done.countDown();
+            }
+        };
+    }
+}